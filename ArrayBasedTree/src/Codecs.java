@@ -0,0 +1,105 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Standard codecs for KAryTree.save and KAryTree.load.
+ */
+final class Codecs {
+    private Codecs() {
+    }
+
+    static final Main.ICodec<Integer> INTEGER = new Main.ICodec<Integer>() {
+        @Override
+        public int fixedSize() {
+            return 4;
+        }
+
+        @Override
+        public int size(Integer value) {
+            return 4;
+        }
+
+        @Override
+        public void write(Integer value, ByteBuffer buffer) {
+            buffer.putInt(value);
+        }
+
+        @Override
+        public Integer read(ByteBuffer buffer, int size) {
+            return buffer.getInt();
+        }
+    };
+
+    static final Main.ICodec<Long> LONG = new Main.ICodec<Long>() {
+        @Override
+        public int fixedSize() {
+            return 8;
+        }
+
+        @Override
+        public int size(Long value) {
+            return 8;
+        }
+
+        @Override
+        public void write(Long value, ByteBuffer buffer) {
+            buffer.putLong(value);
+        }
+
+        @Override
+        public Long read(ByteBuffer buffer, int size) {
+            return buffer.getLong();
+        }
+    };
+
+    static final Main.ICodec<Double> DOUBLE = new Main.ICodec<Double>() {
+        @Override
+        public int fixedSize() {
+            return 8;
+        }
+
+        @Override
+        public int size(Double value) {
+            return 8;
+        }
+
+        @Override
+        public void write(Double value, ByteBuffer buffer) {
+            buffer.putDouble(value);
+        }
+
+        @Override
+        public Double read(ByteBuffer buffer, int size) {
+            return buffer.getDouble();
+        }
+    };
+
+    /**
+     * UTF-8, variable size.
+     */
+    static final Main.ICodec<String> STRING = new Main.ICodec<String>() {
+        @Override
+        public int fixedSize() {
+            return 0;
+        }
+
+        @Override
+        public int size(String value) {
+            return value.getBytes(StandardCharsets.UTF_8).length;
+        }
+
+        @Override
+        public void write(String value, ByteBuffer buffer) {
+            buffer.put(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public String read(ByteBuffer buffer, int size) {
+            byte[] bytes = new byte[size];
+
+            buffer.get(bytes);
+
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+}
@@ -0,0 +1,161 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Thread-safe append-only version of Main.KAryTree for many writers.
+ * Appending reserves a slot with a single atomic increment, readers never block.
+ *
+ * Slots live in segments of growing size (2^SEGMENT_SHIFT, twice that, and so on),
+ * so growing only installs a new segment and never copies or moves written slots.
+ * Readers see the published prefix: the longest run of completely written slots
+ * starting at the root, which is itself a complete tree.
+ */
+public class ConcurrentKAryTree<T> {
+    private static final int SEGMENT_SHIFT = 10;
+    private static final int MAX_SEGMENTS = 32 - SEGMENT_SHIFT;
+
+    private final int degree;
+    private final AtomicInteger lastReservedIndex = new AtomicInteger(0);
+    private final AtomicInteger publishedIndex = new AtomicInteger(0);
+    private final AtomicReferenceArray<AtomicReferenceArray<T>> segments = new AtomicReferenceArray<>(MAX_SEGMENTS);
+
+    public ConcurrentKAryTree(int degree) {
+        this.degree = degree;
+    }
+
+    private static int segmentOf(int i) {
+        return 31 - Integer.numberOfLeadingZeros((i >>> SEGMENT_SHIFT) + 1);
+    }
+
+    private static int offsetIn(int segment, int i) {
+        return i + (1 << SEGMENT_SHIFT) - (1 << (segment + SEGMENT_SHIFT));
+    }
+
+    private AtomicReferenceArray<T> segment(int segment) {
+        AtomicReferenceArray<T> slots = segments.get(segment);
+
+        if (slots == null) {
+            // Several writers may race here, only one segment gets installed
+            segments.compareAndSet(segment, null, new AtomicReferenceArray<>(1 << (segment + SEGMENT_SHIFT)));
+            slots = segments.get(segment);
+        }
+
+        return slots;
+    }
+
+    public int parent(int i) {
+        return (degree + i - 2) / degree;
+    }
+
+    public int nthChildIndex(int i, int j) {
+        if (i == 0 && j == 0) {
+            return 1;
+        }
+
+        return degree * i - (degree - 2) + j;
+    }
+
+    /**
+     * Appends value in level order and returns its index.
+     */
+    public int append(T value) {
+        if (value == null) {
+            throw new NullPointerException("Tree can't hold null values");
+        }
+
+        int i = lastReservedIndex.incrementAndGet();
+        int segment = segmentOf(i);
+
+        // The last segment would need 2^31 slots
+        if (i < 0 || segment >= MAX_SEGMENTS - 1) {
+            throw new IllegalStateException("Tree is full");
+        }
+
+        segment(segment).set(offsetIn(segment, i), value);
+        publish();
+
+        return i;
+    }
+
+    // Moves the published prefix over every slot that is written by now
+    private void publish() {
+        int published = publishedIndex.get();
+
+        while (published < lastReservedIndex.get() && slot(published + 1) != null) {
+            if (publishedIndex.compareAndSet(published, published + 1)) {
+                published++;
+            } else {
+                published = publishedIndex.get();
+            }
+        }
+    }
+
+    private T slot(int i) {
+        int segment = segmentOf(i);
+        AtomicReferenceArray<T> slots = segments.get(segment);
+
+        return slots == null ? null : slots.get(offsetIn(segment, i));
+    }
+
+    /**
+     * Number of nodes in the published prefix.
+     */
+    public int size() {
+        return publishedIndex.get();
+    }
+
+    public T get(int i) {
+        if (i < 1 || i > publishedIndex.get()) {
+            throw new IndexOutOfBoundsException("No node at index " + i);
+        }
+
+        return slot(i);
+    }
+
+    private int childCount(int i, int bound) {
+        int count = 0;
+
+        while (count < degree && nthChildIndex(i, count) <= bound) {
+            count++;
+        }
+
+        return count;
+    }
+
+    public int childCount(int i) {
+        return childCount(i, publishedIndex.get());
+    }
+
+    /**
+     * Visits the prefix published when the traversal started.
+     */
+    public void traverseLeftToRightTopToBot(Main.IVisitor<T> visitor) {
+        int bound = publishedIndex.get();
+
+        for (int i = 1; i <= bound; i++) {
+            visitor.visit(slot(i));
+        }
+    }
+
+    public void traversePreorder(Main.IVisitor<T> visitor) {
+        int bound = publishedIndex.get();
+
+        if (bound == 0) {
+            return;
+        }
+
+        Main.IntStack nodes = new Main.IntStack();
+
+        nodes.push(1); // root
+
+        while (!nodes.isEmpty()) {
+            int node = nodes.pop();
+
+            visitor.visit(slot(node));
+
+            for (int j = childCount(node, bound) - 1; j >= 0; j--) {
+                nodes.push(nthChildIndex(node, j));
+            }
+        }
+    }
+}
@@ -0,0 +1,236 @@
+import java.util.Arrays;
+
+/**
+ * Primitive int specialization of Main.KAryTree.
+ * Uses the same implicit index layout (root at 1, see parent and nthChildIndex),
+ * but keeps values in a flat int[] and marks used slots in an occupancy bitmap
+ * instead of relying on null.
+ */
+public class IntKAryTree {
+    interface IVisitor {
+        void visit(int node);
+    }
+
+    private int degree;
+    private int size;
+    private int lastAddedIndex;
+    private int[] underneath;
+    private long[] occupied;
+
+    public IntKAryTree(int degree) {
+        this.degree = degree;
+        size = 0;
+        lastAddedIndex = 0;
+        underneath = new int[degree * degree];
+        occupied = new long[words(underneath.length)];
+    }
+
+    private static int words(int length) {
+        return (length + 63) >>> 6;
+    }
+
+    private void init() {
+        underneath = Arrays.copyOf(underneath, underneath.length * 2);
+        occupied = Arrays.copyOf(occupied, words(underneath.length));
+    }
+
+    private void ensureCapacity(int i) {
+        while (i >= underneath.length) {
+            init();
+        }
+    }
+
+    public int parent(int i) {
+        return (degree + i - 2) / degree;
+    }
+
+    public int nthChildIndex(int i, int j) {
+        if (i == 0 && j == 0) {
+            return 1;
+        }
+
+        return degree * i - (degree - 2) + j;
+    }
+
+    public boolean isOccupied(int i) {
+        return i > 0 && i < underneath.length && (occupied[i >>> 6] & (1L << i)) != 0;
+    }
+
+    public int get(int i) {
+        if (!isOccupied(i)) {
+            throw new IndexOutOfBoundsException("No node at index " + i);
+        }
+
+        return underneath[i];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Number of children of node i. Like getChildren in KAryTree,
+     * counting stops at the first free child slot.
+     */
+    public int childCount(int i) {
+        int count = 0;
+
+        while (count < degree && isOccupied(nthChildIndex(i, count))) {
+            count++;
+        }
+
+        return count;
+    }
+
+    private void put(int i, int value) {
+        ensureCapacity(i);
+
+        underneath[i] = value;
+        occupied[i >>> 6] |= 1L << i;
+        size++;
+        lastAddedIndex = Math.max(lastAddedIndex, i);
+    }
+
+    /**
+     * Same descent as KAryTree.add, see there why large trees are built with append or addAll.
+     */
+    public void add(int value) {
+        int currentIndex = 1; // root
+
+        while (true) {
+            if (!isOccupied(currentIndex)) {
+                put(currentIndex, value);
+                break;
+            }
+
+            int childrenCount = childCount(currentIndex);
+
+            if (childrenCount >= degree) {
+                currentIndex = nthChildIndex(currentIndex, 0);
+            } else {
+                currentIndex = nthChildIndex(currentIndex, childrenCount);
+            }
+        }
+    }
+
+    /**
+     * Puts value into the slot after the last used one, see KAryTree.append.
+     */
+    public void append(int value) {
+        put(lastAddedIndex + 1, value);
+    }
+
+    /**
+     * Appends values in order, a tree built only this way is complete.
+     * Grows the arrays to the exact size needed instead of doubling them.
+     */
+    public void addAll(int[] values) {
+        int length = lastAddedIndex + values.length + 1;
+
+        if (length > underneath.length) {
+            underneath = Arrays.copyOf(underneath, length);
+            occupied = Arrays.copyOf(occupied, words(length));
+        }
+
+        for (int value: values) {
+            put(lastAddedIndex + 1, value);
+        }
+    }
+
+    /**
+     * Visits the nodes the other traversals reach, in the same order as
+     * KAryTree.traverseLeftToRightTopToBot. Children are stored after their parents,
+     * so in a complete tree level order is just an index scan.
+     */
+    public void traverseLeftToRightTopToBot(IVisitor visitor) {
+        if (size != lastAddedIndex) {
+            traverseReachable(visitor);
+            return;
+        }
+
+        for (int w = 0; w < occupied.length; w++) {
+            long word = occupied[w];
+
+            while (word != 0) {
+                int i = (w << 6) + Long.numberOfTrailingZeros(word);
+
+                visitor.visit(underneath[i]);
+                word &= word - 1;
+            }
+        }
+    }
+
+    // A gap (left by mixing add and append) cuts off the slots below it, walk from the root
+    private void traverseReachable(IVisitor visitor) {
+        if (!isOccupied(1)) {
+            return;
+        }
+
+        Main.IntQueue nodes = new Main.IntQueue();
+
+        nodes.add(1); // root
+
+        while (!nodes.isEmpty()) {
+            int node = nodes.remove();
+            int childrenCount = childCount(node);
+
+            visitor.visit(underneath[node]);
+
+            for (int j = 0; j < childrenCount; j++) {
+                nodes.add(nthChildIndex(node, j));
+            }
+        }
+    }
+
+    private void traversePreorder(int node, IVisitor visitor) {
+        visitor.visit(underneath[node]);
+
+        int childrenCount = childCount(node);
+
+        for (int j = 0; j < childrenCount; j++) {
+            traversePreorder(nthChildIndex(node, j), visitor);
+        }
+    }
+
+    public void traversePreorder(IVisitor visitor) {
+        if (isOccupied(1)) {
+            traversePreorder(1, visitor);
+        }
+    }
+
+    private void traverseInorder(int node, IVisitor visitor) {
+        int childrenCount = childCount(node);
+
+        for (int j = 0; j < childrenCount / 2; j++) {
+            traverseInorder(nthChildIndex(node, j), visitor);
+        }
+
+        visitor.visit(underneath[node]);
+
+        for (int j = childrenCount / 2; j < childrenCount; j++) {
+            traverseInorder(nthChildIndex(node, j), visitor);
+        }
+    }
+
+    public void traverseInorder(IVisitor visitor) {
+        if (isOccupied(1)) {
+            traverseInorder(1, visitor);
+        }
+    }
+
+    private void traversePostorder(int node, IVisitor visitor) {
+        int childrenCount = childCount(node);
+
+        for (int j = 0; j < childrenCount; j++) {
+            traversePostorder(nthChildIndex(node, j), visitor);
+        }
+
+        visitor.visit(underneath[node]);
+    }
+
+    public void traversePostorder(IVisitor visitor) {
+        if (isOccupied(1)) {
+            traversePostorder(1, visitor);
+        }
+    }
+}
@@ -0,0 +1,280 @@
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Simple timing harness for KAryTree traversals.
+ * Reports time and bytes allocated by the current thread per traversal.
+ */
+public class KAryTreeBenchmark {
+    private static final int NODES = 1_000_000;
+    private static final int WARMUP = 5;
+    private static final int ITERATIONS = 10;
+
+    static class CountVisitor implements Main.IVisitor<Object> {
+        long count = 0;
+
+        @Override
+        public void visit(Object node) {
+            count++;
+        }
+    }
+
+    static class SumVisitor implements Main.ICombinableVisitor<Integer, SumVisitor> {
+        long sum = 0;
+
+        @Override
+        public void visit(Integer node) {
+            sum += node;
+        }
+
+        @Override
+        public SumVisitor fork() {
+            return new SumVisitor();
+        }
+
+        @Override
+        public void combine(SumVisitor other) {
+            sum += other.sum;
+        }
+    }
+
+    private static final com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static long allocatedBytes() {
+        return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Returns the average time of one run in nanoseconds.
+     */
+    private static double measure(String name, Runnable operation) {
+        for (int i = 0; i < WARMUP; i++) {
+            operation.run();
+        }
+
+        long bytesBefore = allocatedBytes();
+        long timeBefore = System.nanoTime();
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            operation.run();
+        }
+
+        long time = System.nanoTime() - timeBefore;
+        long bytes = allocatedBytes() - bytesBefore;
+
+        System.out.printf("%-30s %10.3f ms/op %14d B/op%n", name, time / 1e6 / ITERATIONS, bytes / ITERATIONS);
+
+        return (double) time / ITERATIONS;
+    }
+
+    static Integer[] values(int n) {
+        Integer[] values = new Integer[n];
+
+        for (int i = 0; i < n; i++) {
+            values[i] = i;
+        }
+
+        return values;
+    }
+
+    static Main.KAryTree<Integer> completeTree(int degree, int n) {
+        Main.KAryTree<Integer> tree = new Main.KAryTree<>(degree);
+
+        tree.addAll(values(n));
+
+        return tree;
+    }
+
+    // The way traversals enumerated children before childCount existed
+    private static void preorderWithLists(Main.KAryTree<Integer> tree, int node, CountVisitor visitor) {
+        List<Integer> children = tree.getChildren(node);
+
+        visitor.visit(node);
+
+        for (Integer child: children) {
+            preorderWithLists(tree, child, visitor);
+        }
+    }
+
+    private static void batchEvaluation() {
+        final int trees = 1_000_000;
+        Main.KAryTree<String> shape = new Main.KAryTree<>(2);
+
+        for (int i = 0; i < 8; i++) {
+            shape.append(Integer.toString(i + 1));
+            shape.append("+-*+".substring(i % 4, i % 4 + 1));
+        }
+
+        shape.append("1");
+
+        Main.CompilingVisitor compilingVisitor = new Main.CompilingVisitor();
+
+        shape.traverseInorder(compilingVisitor);
+
+        Main.CompiledExpression compiled = compilingVisitor.compile();
+        int[][] columns = new int[compiled.operandCount()][trees];
+        int[] results = new int[trees];
+        Random random = new Random(42);
+
+        for (int[] column: columns) {
+            for (int t = 0; t < trees; t++) {
+                column[t] = random.nextInt(100) + 1;
+            }
+        }
+
+        System.out.println("Batch of " + trees + " expression trees, " + shape.size() + " tokens each");
+
+        int[] operands = new int[compiled.operandCount()];
+
+        double oneByOne = measure("one tree at a time", () -> {
+            for (int t = 0; t < trees; t++) {
+                for (int k = 0; k < operands.length; k++) {
+                    operands[k] = columns[k][t];
+                }
+
+                results[t] = compiled.evaluate(operands);
+            }
+        });
+        double batch = measure("batch", () -> compiled.evaluate(columns, results));
+
+        System.out.printf("throughput: %.1f M trees/s one at a time, %.1f M trees/s batched%n",
+                trees / oneByOne * 1e3, trees / batch * 1e3);
+    }
+
+    // Runs body on the given number of threads at once and waits for all of them
+    private static void onThreads(int threads, Runnable body) {
+        Thread[] workers = new Thread[threads];
+
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(body);
+            workers[t].start();
+        }
+
+        try {
+            for (Thread worker: workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void concurrentAppends() {
+        final int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        final int perThread = NODES / threads;
+        Integer[] values = values(perThread);
+
+        System.out.println("Concurrent appends, " + threads + " threads x " + perThread);
+
+        measure("global lock", () -> {
+            Main.KAryTree<Integer> tree = new Main.KAryTree<>(2);
+
+            onThreads(threads, () -> {
+                for (Integer value: values) {
+                    synchronized (tree) {
+                        tree.append(value);
+                    }
+                }
+            });
+        });
+        measure("ConcurrentKAryTree", () -> {
+            ConcurrentKAryTree<Integer> tree = new ConcurrentKAryTree<>(2);
+
+            onThreads(threads, () -> {
+                for (Integer value: values) {
+                    tree.append(value);
+                }
+            });
+        });
+    }
+
+    public static void main(String[] args) {
+        Main.KAryTree<Integer> tree = completeTree(2, NODES);
+        CountVisitor visitor = new CountVisitor();
+
+        Integer[] values = values(NODES);
+
+        System.out.println("Complete binary tree, " + NODES + " nodes");
+
+        measure("build (append)", () -> {
+            Main.KAryTree<Integer> built = new Main.KAryTree<>(2);
+
+            for (Integer value: values) {
+                built.append(value);
+            }
+        });
+        measure("build (addAll)", () -> new Main.KAryTree<Integer>(2).addAll(values));
+
+        measure("preorder (getChildren)", () -> preorderWithLists(tree, 1, visitor));
+        measure("preorder", () -> tree.traversePreorder(visitor));
+        measure("inorder", () -> tree.traverseInorder(visitor));
+        measure("postorder", () -> tree.traversePostorder(visitor));
+        measure("preorder (iterative)", () -> tree.traversePreorderIterative(visitor));
+        measure("inorder (iterative)", () -> tree.traverseInorderIterative(visitor));
+        measure("postorder (iterative)", () -> tree.traversePostorderIterative(visitor));
+        measure("level order", () -> tree.traverseLeftToRightTopToBot(visitor));
+
+        for (int degree: new int[] {2, 8, 64}) {
+            Main.KAryTree<Integer> wide = completeTree(degree, NODES * 10);
+
+            System.out.println("Complete tree of degree " + degree + ", " + NODES * 10 + " nodes");
+
+            measure("sum (sequential)", () -> wide.traversePreorderIterative(new SumVisitor()));
+            measure("sum (parallel)", () -> wide.traverseParallel(new SumVisitor()));
+            measure("sum (stream)", () -> wide.stream().mapToLong(Integer::longValue).sum());
+            measure("sum (parallelStream)", () -> wide.parallelStream().mapToLong(Integer::longValue).sum());
+        }
+
+        Main.KAryTree<String> expression = new Main.KAryTree<>(2);
+
+        for (int i = 0; i < 1000; i++) {
+            expression.append(Integer.toString(i % 9 + 1));
+            expression.append("+-*/".substring(i % 4, i % 4 + 1));
+        }
+
+        expression.append("7");
+
+        Main.CalculatorVisitor calcVisitor = new Main.CalculatorVisitor();
+        Main.CompilingVisitor compilingVisitor = new Main.CompilingVisitor();
+
+        expression.traverseInorder(compilingVisitor);
+
+        Main.CompiledExpression compiled = compilingVisitor.compile();
+        int[] operands = compiled.operands();
+
+        System.out.println("Expression tree, " + expression.size() + " tokens, x1000 evaluations");
+
+        measure("traverseInorder(calcVisitor)", () -> {
+            for (int i = 0; i < 1000; i++) {
+                expression.traverseInorder(calcVisitor);
+                calcVisitor.clear();
+            }
+        });
+        measure("compiled evaluate", () -> {
+            for (int i = 0; i < 1000; i++) {
+                operands[0] = i;
+                compiled.evaluate(operands);
+            }
+        });
+
+        batchEvaluation();
+        concurrentAppends();
+
+        Main.KAryTree<Integer> chain = completeTree(1, NODES);
+
+        System.out.println("Degenerate tree (degree 1), " + NODES + " nodes");
+
+        try {
+            chain.traversePreorder(visitor);
+            System.out.println("preorder (recursive) completed");
+        } catch (StackOverflowError e) {
+            System.out.println("preorder (recursive) overflowed the stack");
+        }
+
+        measure("preorder (iterative)", () -> chain.traversePreorderIterative(visitor));
+        measure("inorder (iterative)", () -> chain.traverseInorderIterative(visitor));
+        measure("postorder (iterative)", () -> chain.traversePostorderIterative(visitor));
+    }
+}
@@ -1,5 +1,15 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Created by Max on 10.10.2015.
@@ -9,6 +19,219 @@ public class Main {
         public void visit(T node);
     }
 
+    /**
+     * Flat form of what CalculatorVisitor computes: for every number in visiting order
+     * the operation it is applied with. Operators and numbers are parsed once,
+     * so the same expression can be evaluated many times with different operands.
+     */
+    static class CompiledExpression {
+        static final byte ASSIGN = 0;
+        static final byte ADD = 1;
+        static final byte SUBTRACT = 2;
+        static final byte MULTIPLY = 3;
+        static final byte DIVIDE = 4;
+
+        private final byte[] operations;
+        private final int[] operands;
+
+        CompiledExpression(byte[] operations, int[] operands) {
+            this.operations = operations;
+            this.operands = operands;
+        }
+
+        public int operandCount() {
+            return operands.length;
+        }
+
+        /**
+         * Numbers of the source tree in visiting order, a copy that can be changed and passed to evaluate.
+         */
+        public int[] operands() {
+            return operands.clone();
+        }
+
+        public int evaluate() {
+            return evaluate(operands);
+        }
+
+        public int evaluate(int[] operands) {
+            if (operands.length != this.operands.length) {
+                throw new IllegalArgumentException("Expected " + this.operands.length + " operands, got " + operands.length);
+            }
+
+            byte[] operations = this.operations;
+            int value = 0;
+
+            for (int k = 0; k < operations.length; k++) {
+                int operand = operands[k];
+
+                switch (operations[k]) {
+                    case ASSIGN:
+                        value = operand;
+                        break;
+                    case ADD:
+                        value += operand;
+                        break;
+                    case SUBTRACT:
+                        value -= operand;
+                        break;
+                    case MULTIPLY:
+                        value *= operand;
+                        break;
+                    case DIVIDE:
+                        value /= operand;
+                        break;
+                }
+            }
+
+            return value;
+        }
+
+        /**
+         * Evaluates many expressions of the same shape (same operators in the same places) at once.
+         * columns[k][t] is the k-th operand of expression t, the result of expression t goes to results[t].
+         * Every operation is applied to a whole column in one plain loop, which the JIT can vectorize.
+         */
+        public void evaluate(int[][] columns, int[] results) {
+            if (columns.length != operands.length) {
+                throw new IllegalArgumentException("Expected " + operands.length + " operand columns, got " + columns.length);
+            }
+
+            int n = results.length;
+
+            for (int k = 0; k < operations.length; k++) {
+                int[] column = columns[k];
+
+                if (column.length < n) {
+                    throw new IllegalArgumentException("Operand column " + k + " is shorter than results");
+                }
+
+                switch (operations[k]) {
+                    case ASSIGN:
+                        System.arraycopy(column, 0, results, 0, n);
+                        break;
+                    case ADD:
+                        for (int t = 0; t < n; t++) {
+                            results[t] += column[t];
+                        }
+                        break;
+                    case SUBTRACT:
+                        for (int t = 0; t < n; t++) {
+                            results[t] -= column[t];
+                        }
+                        break;
+                    case MULTIPLY:
+                        for (int t = 0; t < n; t++) {
+                            results[t] *= column[t];
+                        }
+                        break;
+                    case DIVIDE:
+                        for (int t = 0; t < n; t++) {
+                            results[t] /= column[t];
+                        }
+                        break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Records the tokens of a traversal and turns them into a CompiledExpression
+     * that gives the same result as CalculatorVisitor for that traversal.
+     */
+    static class CompilingVisitor implements IVisitor<String> {
+        private byte pendingOperation = CompiledExpression.ASSIGN;
+        private byte[] operations = new byte[16];
+        private int[] operands = new int[16];
+        private int count = 0;
+
+        @Override
+        public void visit(String node) {
+            switch (node) {
+                case "+":
+                    pendingOperation = CompiledExpression.ADD;
+                    break;
+                case "-":
+                    pendingOperation = CompiledExpression.SUBTRACT;
+                    break;
+                case "*":
+                    pendingOperation = CompiledExpression.MULTIPLY;
+                    break;
+                case "/":
+                    pendingOperation = CompiledExpression.DIVIDE;
+                    break;
+                default:
+                    if (count == operands.length) {
+                        operations = Arrays.copyOf(operations, count * 2);
+                        operands = Arrays.copyOf(operands, count * 2);
+                    }
+
+                    // The first number always starts the value, just like in CalculatorVisitor
+                    operations[count] = count == 0 ? CompiledExpression.ASSIGN : pendingOperation;
+                    operands[count] = Integer.parseInt(node);
+                    count++;
+            }
+        }
+
+        public CompiledExpression compile() {
+            if (count == 0) {
+                throw new IllegalStateException("Expression has no numbers");
+            }
+
+            return new CompiledExpression(Arrays.copyOf(operations, count), Arrays.copyOf(operands, count));
+        }
+
+        public void clear() {
+            pendingOperation = CompiledExpression.ASSIGN;
+            count = 0;
+        }
+    }
+
+    /**
+     * Binary encoding of tree values for KAryTree.save and KAryTree.load, see Codecs.
+     * Codecs of fixed size values return it from fixedSize(), variable size ones return 0
+     * and the file gets a length prefix before every value.
+     */
+    interface ICodec<T> {
+        public int fixedSize();
+
+        public int size(T value);
+
+        public void write(T value, ByteBuffer buffer);
+
+        public T read(ByteBuffer buffer, int size);
+    }
+
+    /**
+     * Visitor that can be split across threads: every part of the tree is visited
+     * by its own fork() and the partial results are merged back with combine().
+     * combine must be associative, the order of the parts is preserved.
+     */
+    interface ICombinableVisitor<T, V extends ICombinableVisitor<T, V>> extends IVisitor<T> {
+        public V fork();
+
+        public void combine(V other);
+    }
+
+    static class CountVisitor<T> implements ICombinableVisitor<T, CountVisitor<T>> {
+        public long count = 0;
+
+        @Override
+        public void visit(T node) {
+            count++;
+        }
+
+        @Override
+        public CountVisitor<T> fork() {
+            return new CountVisitor<>();
+        }
+
+        @Override
+        public void combine(CountVisitor<T> other) {
+            count += other.count;
+        }
+    }
+
     static class PrintVisitor<T> implements IVisitor<T> {
         @Override
         public void visit(T node) {
@@ -72,48 +295,164 @@ public class Main {
         }
     }
 
+    static class IntStack {
+        private int[] items = new int[16];
+        private int size = 0;
+
+        public void push(int value) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+            }
+
+            items[size++] = value;
+        }
+
+        public int pop() {
+            return items[--size];
+        }
+
+        public int peek() {
+            return items[size - 1];
+        }
+
+        public void setTop(int value) {
+            items[size - 1] = value;
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+    }
+
+    static class IntQueue {
+        private int[] items = new int[16];
+        private int head = 0;
+        private int size = 0;
+
+        public void add(int value) {
+            if (size == items.length) {
+                int[] grown = new int[size * 2];
+                int firstPart = items.length - head;
+
+                System.arraycopy(items, head, grown, 0, firstPart);
+                System.arraycopy(items, 0, grown, firstPart, head);
+
+                items = grown;
+                head = 0;
+            }
+
+            items[(head + size) & (items.length - 1)] = value;
+            size++;
+        }
+
+        public int remove() {
+            int value = items[head];
+
+            head = (head + 1) & (items.length - 1);
+            size--;
+
+            return value;
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+    }
+
     @SuppressWarnings({"unchecked"})
     public static class KAryTree<T> {
         private int degree;
         private int lastAddedIndex;
+        private int size;
         private T[] underneath;
 
         public KAryTree(int degree) {
             this.degree = degree;
             lastAddedIndex = 0;
+            size = 0;
             underneath = (T[]) new Object[degree * degree];
         }
 
-        private void init() {
-            underneath = Arrays.copyOf(this.underneath, underneath.length * 2);
+        private KAryTree(int degree, int length) {
+            this.degree = degree;
+            lastAddedIndex = 0;
+            size = 0;
+            underneath = (T[]) new Object[Math.max(degree * degree, length)];
+        }
+
+        private void init(int minLength) {
+            underneath = Arrays.copyOf(this.underneath, Math.max(underneath.length * 2, minLength));
         }
 
         public int parent(int i) {
             return (degree + i - 2) / degree;
         }
 
+        private void ensureCapacity(int i) {
+            if (i >= underneath.length) {
+                init(i + 1);
+            }
+        }
+
         public List<Integer> getChildren(int i) {
             List<Integer> children = new LinkedList<>();
+            int childrenCount = childCount(i);
 
-            for (int j = 0; j < degree; j++) {
-                int childIndex = nthChildIndex(i, j);
+            for (int j = 0; j < childrenCount; j++) {
+                children.add(nthChildIndex(i, j));
+            }
 
-                if (childIndex < 0) {
-                    break;
-                }
+            return children;
+        }
 
-                while (childIndex >= underneath.length) {
-                    init();
-                }
+        /**
+         * Number of children of node i without building a list.
+         * Children always occupy the range nthChildIndex(i, 0) .. nthChildIndex(i, childCount(i) - 1),
+         * counting stops at the first free slot just like in getChildren.
+         */
+        public int childCount(int i) {
+            int count = 0;
+
+            while (count < degree) {
+                int childIndex = nthChildIndex(i, count);
 
-                if (underneath[childIndex] == null) {
+                if (childIndex < 0 || childIndex >= underneath.length || underneath[childIndex] == null) {
                     break;
                 }
 
-                children.add(childIndex);
+                count++;
             }
 
-            return children;
+            return count;
+        }
+
+        /**
+         * Places value directly into slot i. Does not check that the parent exists,
+         * a node below a free slot is simply never reached by traversals.
+         */
+        public void set(int i, T value) {
+            ensureCapacity(i);
+
+            if (underneath[i] == null && value != null) {
+                size++;
+            } else if (underneath[i] != null && value == null) {
+                size--;
+            }
+
+            underneath[i] = value;
+            lastAddedIndex = Math.max(lastAddedIndex, i);
+        }
+
+        /**
+         * Number of non-null slots.
+         */
+        public int size() {
+            return size;
+        }
+
+        // Every slot up to lastAddedIndex is used, i.e. the tree is complete
+        private boolean isDense() {
+            return size == lastAddedIndex;
         }
 
         public int nthChildIndex(int i, int j) {
@@ -124,39 +463,89 @@ public class Main {
             return degree * i - (degree - 2) + j;
         }
 
+        /**
+         * Walks down from the root to the first free slot. Once a node is full the walk always goes
+         * on to its leftmost child, so indexes grow exponentially with the number of nodes and
+         * the array with them. Build large trees with append or addAll instead.
+         */
         public void add(T value) {
             int currentIndex = 1; // root
 
             while (true) {
+                ensureCapacity(currentIndex);
+
                 T currentValue = underneath[currentIndex];
 
                 if (currentValue == null) {
                     underneath[currentIndex] = value;
+                    lastAddedIndex = Math.max(lastAddedIndex, currentIndex);
+                    if (value != null) {
+                        size++;
+                    }
                     break;
                 }
 
-                List<Integer> children = getChildren(currentIndex);
+                int childrenCount = childCount(currentIndex);
 
-                if (children.size() < 1) {
-                    // Create new child
+                if (childrenCount >= degree) {
                     currentIndex = nthChildIndex(currentIndex, 0);
                 } else {
-                    if (children.size() >= degree) {
-                        currentIndex = children.get(0);
-                    } else {
-                        currentIndex = nthChildIndex(currentIndex, children.size());
-                    }
+                    // Create new child
+                    currentIndex = nthChildIndex(currentIndex, childrenCount);
+                }
+            }
+        }
+
+        /**
+         * Puts value into the slot right after the last used one. A tree built only with append
+         * is filled level by level (a complete tree), so no walk from the root is needed.
+         * Mixing it with add, whose descent follows the leftmost child, leaves gaps that append skips.
+         */
+        public void append(T value) {
+            ensureCapacity(lastAddedIndex + 1);
+            underneath[++lastAddedIndex] = value;
+
+            if (value != null) {
+                size++;
+            }
+        }
+
+        public void addAll(T[] values) {
+            ensureCapacity(lastAddedIndex + values.length);
+            System.arraycopy(values, 0, underneath, lastAddedIndex + 1, values.length);
+            lastAddedIndex += values.length;
+
+            for (T value: values) {
+                if (value != null) {
+                    size++;
+                }
+            }
+        }
+
+        public void addAll(Collection<? extends T> values) {
+            ensureCapacity(lastAddedIndex + values.size());
+
+            for (T value: values) {
+                underneath[++lastAddedIndex] = value;
+
+                if (value != null) {
+                    size++;
                 }
             }
         }
 
         public void traverseLeftToRightTopToBot(IVisitor visitor) {
-            Queue<Integer> indexesQueue = new LinkedTransferQueue<>();
+            IntQueue indexesQueue = new IntQueue();
 
             indexesQueue.add(1); // root
 
             while (!indexesQueue.isEmpty()) {
                 int currentIndex = indexesQueue.remove();
+
+                if (currentIndex >= underneath.length) {
+                    continue;
+                }
+
                 T currentVal = underneath[currentIndex];
 
                 if (currentVal == null) {
@@ -165,17 +554,21 @@ public class Main {
 
                 visitor.visit(currentVal);
 
-                indexesQueue.addAll(getChildren(currentIndex));
+                int childrenCount = childCount(currentIndex);
+
+                for (int j = 0; j < childrenCount; j++) {
+                    indexesQueue.add(nthChildIndex(currentIndex, j));
+                }
             }
         }
 
         private void traversePreorder(int node, IVisitor visitor) {
-            List<Integer> children = getChildren(node);
+            int childrenCount = childCount(node);
 
             visitor.visit(underneath[node]);
 
-            for (Integer child: children) {
-                traversePreorder(child, visitor);
+            for (int j = 0; j < childrenCount; j++) {
+                traversePreorder(nthChildIndex(node, j), visitor);
             }
         }
 
@@ -184,16 +577,16 @@ public class Main {
         }
 
         public void traverseInorder(int node, IVisitor visitor) {
-            List<Integer> children = getChildren(node);
+            int childrenCount = childCount(node);
 
-            for (int i = 0; i < children.size() / 2; i++) {
-                traverseInorder(children.get(i), visitor);
+            for (int j = 0; j < childrenCount / 2; j++) {
+                traverseInorder(nthChildIndex(node, j), visitor);
             }
 
             visitor.visit(underneath[node]);
 
-            for (int i = children.size() / 2; i < children.size(); i++) {
-                traverseInorder(children.get(i), visitor);
+            for (int j = childrenCount / 2; j < childrenCount; j++) {
+                traverseInorder(nthChildIndex(node, j), visitor);
             }
         }
 
@@ -202,10 +595,10 @@ public class Main {
         }
 
         public void traversePostorder(int node, IVisitor visitor) {
-            List<Integer> children = getChildren(node);
+            int childrenCount = childCount(node);
 
-            for (Integer child: children) {
-                traversePreorder(child, visitor);
+            for (int j = 0; j < childrenCount; j++) {
+                traversePostorder(nthChildIndex(node, j), visitor);
             }
 
             visitor.visit(underneath[node]);
@@ -214,6 +607,553 @@ public class Main {
         public void traversePostorder(IVisitor visitor) {
             traversePostorder(1, visitor);
         }
+
+        // Iterative versions of the traversals above. They keep pending nodes in an explicit
+        // int stack instead of the call stack, so even a degenerate tree (degree 1) can't overflow it.
+
+        private boolean hasRoot() {
+            return underneath.length > 1 && underneath[1] != null;
+        }
+
+        public void traversePreorderIterative(IVisitor<? super T> visitor) {
+            if (hasRoot()) {
+                traversePreorderIterative(1, visitor);
+            }
+        }
+
+        private void traversePreorderIterative(int root, IVisitor<? super T> visitor) {
+            IntStack nodes = new IntStack();
+
+            nodes.push(root);
+
+            while (!nodes.isEmpty()) {
+                int node = nodes.pop();
+
+                visitor.visit(underneath[node]);
+
+                for (int j = childCount(node) - 1; j >= 0; j--) {
+                    nodes.push(nthChildIndex(node, j));
+                }
+            }
+        }
+
+        @SuppressWarnings("serial")
+        private class SubtreeTask<V extends ICombinableVisitor<T, V>> extends RecursiveTask<V> {
+            private final int node;
+            private final int depth;
+            private final int splitDepth;
+            private final V visitor;
+
+            SubtreeTask(int node, int depth, int splitDepth, V visitor) {
+                this.node = node;
+                this.depth = depth;
+                this.splitDepth = splitDepth;
+                this.visitor = visitor;
+            }
+
+            @Override
+            protected V compute() {
+                if (depth >= splitDepth) {
+                    traversePreorderIterative(node, visitor);
+                    return visitor;
+                }
+
+                visitor.visit(underneath[node]);
+
+                int childrenCount = childCount(node);
+                List<SubtreeTask<V>> tasks = new ArrayList<>(childrenCount);
+
+                for (int j = 0; j < childrenCount; j++) {
+                    tasks.add(new SubtreeTask<>(nthChildIndex(node, j), depth + 1, splitDepth, visitor.fork()));
+                }
+
+                invokeAll(tasks);
+
+                for (SubtreeTask<V> task: tasks) {
+                    visitor.combine(task.join());
+                }
+
+                return visitor;
+            }
+        }
+
+        /**
+         * Visits every node in parallel. Subtrees rooted at the first few levels are handed
+         * to separate fork/join tasks, each with its own visitor.fork(); results are combined
+         * into the passed visitor, which is returned.
+         */
+        public <V extends ICombinableVisitor<T, V>> V traverseParallel(V visitor, ForkJoinPool pool) {
+            if (!hasRoot()) {
+                return visitor;
+            }
+
+            // Enough levels to get several tasks per worker; a chain (degree 1) is never split
+            int splitDepth = 0;
+
+            if (degree > 1) {
+                for (long tasks = 1; tasks < pool.getParallelism() * 8L; tasks *= degree) {
+                    splitDepth++;
+                }
+            }
+
+            return pool.invoke(new SubtreeTask<>(1, 0, splitDepth, visitor));
+        }
+
+        public <V extends ICombinableVisitor<T, V>> V traverseParallel(V visitor) {
+            return traverseParallel(visitor, ForkJoinPool.commonPool());
+        }
+
+        public void traverseInorderIterative(IVisitor<? super T> visitor) {
+            if (!hasRoot()) {
+                return;
+            }
+
+            // For every node on the path: its index, number of children and the next child to descend into
+            IntStack nodes = new IntStack();
+            IntStack counts = new IntStack();
+            IntStack positions = new IntStack();
+
+            nodes.push(1); // root
+            counts.push(childCount(1));
+            positions.push(0);
+
+            while (!nodes.isEmpty()) {
+                int node = nodes.peek();
+                int childrenCount = counts.peek();
+                int position = positions.peek();
+
+                if (position == childrenCount / 2) {
+                    visitor.visit(underneath[node]);
+                }
+
+                if (position < childrenCount) {
+                    int child = nthChildIndex(node, position);
+
+                    positions.setTop(position + 1);
+
+                    nodes.push(child);
+                    counts.push(childCount(child));
+                    positions.push(0);
+                } else {
+                    nodes.pop();
+                    counts.pop();
+                    positions.pop();
+                }
+            }
+        }
+
+        public void traversePostorderIterative(IVisitor<? super T> visitor) {
+            if (!hasRoot()) {
+                return;
+            }
+
+            IntStack nodes = new IntStack();
+            IntStack counts = new IntStack();
+            IntStack positions = new IntStack();
+
+            nodes.push(1); // root
+            counts.push(childCount(1));
+            positions.push(0);
+
+            while (!nodes.isEmpty()) {
+                int node = nodes.peek();
+                int position = positions.peek();
+
+                if (position < counts.peek()) {
+                    int child = nthChildIndex(node, position);
+
+                    positions.setTop(position + 1);
+
+                    nodes.push(child);
+                    counts.push(childCount(child));
+                    positions.push(0);
+                } else {
+                    visitor.visit(underneath[node]);
+
+                    nodes.pop();
+                    counts.pop();
+                    positions.pop();
+                }
+            }
+        }
+
+        /**
+         * Splits a range of positions in halves. In a complete tree position i is slot i of underneath.
+         * Otherwise some used slots may be cut off from the root by a free one (when add and append
+         * are mixed), so the positions index nodes, the slots of the reachable nodes in level order.
+         * Either way every position holds exactly one element, so the size of every part is known.
+         */
+        private class LevelOrderSpliterator implements Spliterator<T> {
+            private static final int MIN_SPLIT = 1024;
+
+            private final int[] nodes;
+            private int from;
+            private final int to;
+
+            LevelOrderSpliterator(int[] nodes, int from, int to) {
+                this.nodes = nodes;
+                this.from = from;
+                this.to = to;
+            }
+
+            private T valueAt(int position) {
+                return underneath[nodes == null ? position : nodes[position]];
+            }
+
+            @Override
+            public boolean tryAdvance(Consumer<? super T> action) {
+                if (from >= to) {
+                    return false;
+                }
+
+                action.accept(valueAt(from++));
+
+                return true;
+            }
+
+            @Override
+            public void forEachRemaining(Consumer<? super T> action) {
+                T[] values = underneath;
+
+                if (nodes == null) {
+                    for (int i = from; i < to; i++) {
+                        action.accept(values[i]);
+                    }
+                } else {
+                    for (int i = from; i < to; i++) {
+                        action.accept(values[nodes[i]]);
+                    }
+                }
+
+                from = to;
+            }
+
+            @Override
+            public Spliterator<T> trySplit() {
+                int mid = (from + to) >>> 1;
+
+                if (mid - from < MIN_SPLIT) {
+                    return null;
+                }
+
+                Spliterator<T> prefix = new LevelOrderSpliterator(nodes, from, mid);
+                from = mid;
+
+                return prefix;
+            }
+
+            @Override
+            public long estimateSize() {
+                return to - from;
+            }
+
+            @Override
+            public int characteristics() {
+                return ORDERED | NONNULL | SIZED | SUBSIZED;
+            }
+        }
+
+        // Slots of the nodes traverseLeftToRightTopToBot visits, in the same order
+        private int[] reachableNodes() {
+            int[] nodes = new int[size]; // every reachable slot is used
+            int count = 0;
+
+            if (hasRoot()) {
+                nodes[count++] = 1; // root
+            }
+
+            // The array doubles as the queue of the breadth-first walk
+            for (int head = 0; head < count; head++) {
+                int node = nodes[head];
+                int childrenCount = childCount(node);
+
+                for (int j = 0; j < childrenCount; j++) {
+                    nodes[count++] = nthChildIndex(node, j);
+                }
+            }
+
+            return Arrays.copyOf(nodes, count);
+        }
+
+        /**
+         * Preorder over a list of pending items, the next one on top of the stack.
+         * An item is either a whole subtree (index) or just a single node (-index),
+         * splitting hands the first half of the items to the new spliterator.
+         */
+        private class PreorderSpliterator implements Spliterator<T> {
+            private int[] items;
+            private int count;
+
+            PreorderSpliterator(int[] items, int count) {
+                this.items = items;
+                this.count = count;
+            }
+
+            private void push(int item) {
+                if (count == items.length) {
+                    items = Arrays.copyOf(items, count * 2);
+                }
+
+                items[count++] = item;
+            }
+
+            // Replaces the subtree on top with its root node followed by the subtrees of its children
+            private void expandTop() {
+                int node = items[--count];
+
+                for (int j = childCount(node) - 1; j >= 0; j--) {
+                    push(nthChildIndex(node, j));
+                }
+
+                push(-node);
+            }
+
+            @Override
+            public boolean tryAdvance(Consumer<? super T> action) {
+                if (count == 0) {
+                    return false;
+                }
+
+                if (items[count - 1] > 0) {
+                    expandTop();
+                }
+
+                action.accept(underneath[-items[--count]]);
+
+                return true;
+            }
+
+            @Override
+            public Spliterator<T> trySplit() {
+                if (count == 1 && items[0] > 0) {
+                    expandTop();
+                }
+
+                if (count < 2) {
+                    return null;
+                }
+
+                int half = count / 2;
+                int[] prefix = new int[Math.max(half, 4)];
+
+                System.arraycopy(items, count - half, prefix, 0, half);
+                count -= half;
+
+                return new PreorderSpliterator(prefix, half);
+            }
+
+            @Override
+            public long estimateSize() {
+                return count == 0 ? 0 : Long.MAX_VALUE;
+            }
+
+            @Override
+            public int characteristics() {
+                return ORDERED | NONNULL;
+            }
+        }
+
+        /**
+         * Reports SIZED and SUBSIZED. A complete tree (built with append or addAll) is split by
+         * slot ranges right away, any other tree is walked once first to find its reachable nodes.
+         */
+        public Spliterator<T> spliterator() {
+            if (isDense()) {
+                return new LevelOrderSpliterator(null, 1, lastAddedIndex + 1);
+            }
+
+            int[] nodes = reachableNodes();
+
+            return new LevelOrderSpliterator(nodes, 0, nodes.length);
+        }
+
+        /**
+         * Nodes in level order, same as traverseLeftToRightTopToBot, see spliterator.
+         */
+        public Stream<T> stream() {
+            return StreamSupport.stream(spliterator(), false);
+        }
+
+        public Stream<T> parallelStream() {
+            return StreamSupport.stream(spliterator(), true);
+        }
+
+        /**
+         * Nodes in preorder, same as traversePreorder. Splits by subtrees when run in parallel.
+         */
+        public Stream<T> preorderStream() {
+            int[] items = new int[16];
+
+            items[0] = 1; // root
+
+            return StreamSupport.stream(new PreorderSpliterator(items, hasRoot() ? 1 : 0), false);
+        }
+
+        // ---------- SNAPSHOT --------------------------------------------------
+        //
+        // Header: magic, version, degree, lastAddedIndex, size, flags (all ints).
+        // Then the occupancy bitmap of slots 0..lastAddedIndex as longs, left out when the tree is dense,
+        // and the values of occupied slots in index order, each with an int length prefix for variable size codecs.
+
+        private static final int SNAPSHOT_MAGIC = 0x4B415354; // "KAST"
+        private static final int SNAPSHOT_VERSION = 1;
+        private static final int SNAPSHOT_DENSE = 1;
+        private static final int SNAPSHOT_BUFFER_SIZE = 1 << 16;
+
+        private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+            buffer.flip();
+
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+
+            buffer.clear();
+        }
+
+        private static void ensureWritable(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush(channel, buffer);
+            }
+        }
+
+        // Buffer is kept in read mode, reads more until at least bytes are available
+        private static void ensureReadable(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) {
+                return;
+            }
+
+            buffer.compact();
+
+            while (buffer.position() < bytes) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("Snapshot is truncated");
+                }
+            }
+
+            buffer.flip();
+        }
+
+        public void save(Path file, ICodec<T> codec) throws IOException {
+            boolean dense = isDense();
+            int fixedSize = codec.fixedSize();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(SNAPSHOT_BUFFER_SIZE);
+
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                buffer.putInt(SNAPSHOT_MAGIC);
+                buffer.putInt(SNAPSHOT_VERSION);
+                buffer.putInt(degree);
+                buffer.putInt(lastAddedIndex);
+                buffer.putInt(size);
+                buffer.putInt(dense ? SNAPSHOT_DENSE : 0);
+
+                if (!dense) {
+                    for (int first = 0; first <= lastAddedIndex; first += 64) {
+                        long word = 0;
+
+                        for (int i = first; i < first + 64 && i <= lastAddedIndex; i++) {
+                            if (underneath[i] != null) {
+                                word |= 1L << i;
+                            }
+                        }
+
+                        ensureWritable(channel, buffer, 8);
+                        buffer.putLong(word);
+                    }
+                }
+
+                for (int i = 1; i <= lastAddedIndex; i++) {
+                    T value = underneath[i];
+
+                    if (value == null) {
+                        continue;
+                    }
+
+                    int valueSize = fixedSize > 0 ? fixedSize : codec.size(value);
+                    int recordSize = fixedSize > 0 ? valueSize : valueSize + 4;
+
+                    if (recordSize > buffer.capacity()) {
+                        flush(channel, buffer);
+                        buffer = ByteBuffer.allocateDirect(recordSize);
+                    }
+
+                    ensureWritable(channel, buffer, recordSize);
+
+                    if (fixedSize == 0) {
+                        buffer.putInt(valueSize);
+                    }
+
+                    codec.write(value, buffer);
+                }
+
+                flush(channel, buffer);
+            }
+        }
+
+        public static <T> KAryTree<T> load(Path file, ICodec<T> codec) throws IOException {
+            int fixedSize = codec.fixedSize();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(SNAPSHOT_BUFFER_SIZE);
+
+            buffer.flip();
+
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                ensureReadable(channel, buffer, 24);
+
+                if (buffer.getInt() != SNAPSHOT_MAGIC || buffer.getInt() != SNAPSHOT_VERSION) {
+                    throw new IOException("Not a tree snapshot or unsupported version: " + file);
+                }
+
+                int degree = buffer.getInt();
+                int lastAddedIndex = buffer.getInt();
+                int size = buffer.getInt();
+                boolean dense = (buffer.getInt() & SNAPSHOT_DENSE) != 0;
+
+                KAryTree<T> tree = new KAryTree<>(degree, lastAddedIndex + 1);
+                long[] occupied = null;
+
+                if (!dense) {
+                    occupied = new long[(lastAddedIndex + 64) >>> 6];
+
+                    for (int w = 0; w < occupied.length; w++) {
+                        ensureReadable(channel, buffer, 8);
+                        occupied[w] = buffer.getLong();
+                    }
+                }
+
+                T[] underneath = tree.underneath;
+
+                for (int i = 1; i <= lastAddedIndex; i++) {
+                    if (!dense && (occupied[i >>> 6] & (1L << i)) == 0) {
+                        continue;
+                    }
+
+                    int valueSize = fixedSize;
+
+                    if (fixedSize == 0) {
+                        ensureReadable(channel, buffer, 4);
+                        valueSize = buffer.getInt();
+                    }
+
+                    if (valueSize > buffer.capacity()) {
+                        ByteBuffer bigger = ByteBuffer.allocateDirect(valueSize);
+
+                        bigger.put(buffer);
+                        bigger.flip();
+                        buffer = bigger;
+                    }
+
+                    ensureReadable(channel, buffer, valueSize);
+                    underneath[i] = codec.read(buffer, valueSize);
+                }
+
+                tree.lastAddedIndex = lastAddedIndex;
+                tree.size = size;
+
+                return tree;
+            }
+        }
+
+        // =========================================================================
     }
 
     public static void main(String[] args) {
@@ -246,5 +1186,10 @@ public class Main {
         ka.traversePostorder(calcVisitor);
         System.out.printf("\nResult(Postorder): %s", calcVisitor.result());
         calcVisitor.clear();
+
+        CompilingVisitor compilingVisitor = new CompilingVisitor();
+
+        ka.traverseInorder(compilingVisitor);
+        System.out.printf("\nResult(Inorder, compiled): %s", compilingVisitor.compile().evaluate());
     }
 }
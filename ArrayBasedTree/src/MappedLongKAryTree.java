@@ -0,0 +1,284 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * LongKAryTree whose slots live in a memory mapped file instead of the heap.
+ * Opening only reads the header, the OS pages the rest in on first access,
+ * so a tree survives restarts without any deserialization.
+ *
+ * File layout: a 64 byte header followed by blocks of 64 slots. Every block is
+ * one long of occupancy bits and 64 long values. The file is mapped in chunks
+ * of whole blocks, because a single mapping can't exceed 2GB.
+ */
+public class MappedLongKAryTree implements Closeable {
+    private static final int MAGIC = 0x4B415452; // "KATR"
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 64;
+    private static final int DEGREE_OFFSET = 8;
+    private static final int SIZE_OFFSET = 16;
+    private static final int LAST_ADDED_OFFSET = 24;
+
+    private static final int BLOCK_SIZE = 8 + 64 * 8;
+    private static final int BLOCKS_PER_CHUNK = 1 << 16;
+    private static final long CHUNK_SIZE = (long) BLOCK_SIZE * BLOCKS_PER_CHUNK;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final List<MappedByteBuffer> chunks = new ArrayList<>();
+
+    private final int degree;
+    private long size;
+    private int lastAddedIndex;
+
+    private MappedLongKAryTree(FileChannel channel, MappedByteBuffer header) {
+        this.channel = channel;
+        this.header = header;
+
+        degree = header.getInt(DEGREE_OFFSET);
+        size = header.getLong(SIZE_OFFSET);
+        lastAddedIndex = (int) header.getLong(LAST_ADDED_OFFSET);
+    }
+
+    public static MappedLongKAryTree create(Path file, int degree) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0, MAGIC);
+        header.putInt(4, VERSION);
+        header.putInt(DEGREE_OFFSET, degree);
+        header.putLong(SIZE_OFFSET, 0);
+        header.putLong(LAST_ADDED_OFFSET, 0);
+
+        return new MappedLongKAryTree(channel, header);
+    }
+
+    public static MappedLongKAryTree open(Path file) throws IOException {
+        if (Files.size(file) < HEADER_SIZE) {
+            throw new IOException("Not a tree file: " + file);
+        }
+
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+
+        header.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            channel.close();
+            throw new IOException("Not a tree file or unsupported version: " + file);
+        }
+
+        return new MappedLongKAryTree(channel, header);
+    }
+
+    private MappedByteBuffer chunk(int c) {
+        while (chunks.size() <= c) {
+            try {
+                // Mapping past the end of the file grows it, unwritten parts stay sparse
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE,
+                        HEADER_SIZE + chunks.size() * CHUNK_SIZE, CHUNK_SIZE);
+
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                chunks.add(buffer);
+            } catch (IOException e) {
+                throw new IllegalStateException("Can't map chunk " + chunks.size(), e);
+            }
+        }
+
+        return chunks.get(c);
+    }
+
+    private MappedByteBuffer chunkOf(int i) {
+        return chunk((i >>> 6) / BLOCKS_PER_CHUNK);
+    }
+
+    private static int wordPosition(int i) {
+        return ((i >>> 6) % BLOCKS_PER_CHUNK) * BLOCK_SIZE;
+    }
+
+    private static int valuePosition(int i) {
+        return wordPosition(i) + 8 + (i & 63) * 8;
+    }
+
+    public int parent(int i) {
+        return (degree + i - 2) / degree;
+    }
+
+    public int nthChildIndex(int i, int j) {
+        if (i == 0 && j == 0) {
+            return 1;
+        }
+
+        return degree * i - (degree - 2) + j;
+    }
+
+    public boolean isOccupied(int i) {
+        if (i <= 0 || i > lastAddedIndex) {
+            return false;
+        }
+
+        return (chunkOf(i).getLong(wordPosition(i)) & (1L << i)) != 0;
+    }
+
+    public long get(int i) {
+        if (!isOccupied(i)) {
+            throw new IndexOutOfBoundsException("No node at index " + i);
+        }
+
+        return chunkOf(i).getLong(valuePosition(i));
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public int childCount(int i) {
+        int count = 0;
+
+        while (count < degree && isOccupied(nthChildIndex(i, count))) {
+            count++;
+        }
+
+        return count;
+    }
+
+    private void put(int i, long value) {
+        MappedByteBuffer buffer = chunkOf(i);
+        int wordPosition = wordPosition(i);
+
+        buffer.putLong(valuePosition(i), value);
+        buffer.putLong(wordPosition, buffer.getLong(wordPosition) | (1L << i));
+
+        size++;
+        lastAddedIndex = Math.max(lastAddedIndex, i);
+
+        header.putLong(SIZE_OFFSET, size);
+        header.putLong(LAST_ADDED_OFFSET, lastAddedIndex);
+    }
+
+    /**
+     * Same descent as KAryTree.add, see there why large trees are built with append.
+     */
+    public void add(long value) {
+        int currentIndex = 1; // root
+
+        while (isOccupied(currentIndex)) {
+            int childrenCount = childCount(currentIndex);
+
+            if (childrenCount >= degree) {
+                currentIndex = nthChildIndex(currentIndex, 0);
+            } else {
+                currentIndex = nthChildIndex(currentIndex, childrenCount);
+            }
+        }
+
+        put(currentIndex, value);
+    }
+
+    /**
+     * Puts value into the slot after the last used one, see KAryTree.append.
+     */
+    public void append(long value) {
+        put(lastAddedIndex + 1, value);
+    }
+
+    /**
+     * Visits the nodes traversePreorder reaches, in the same order as
+     * KAryTree.traverseLeftToRightTopToBot. Children are stored after their parents,
+     * so in a complete tree level order is an index scan that walks the file
+     * sequentially, block by block.
+     */
+    public void traverseLeftToRightTopToBot(LongKAryTree.IVisitor visitor) {
+        if (size != lastAddedIndex) {
+            traverseReachable(visitor);
+            return;
+        }
+
+        for (int block = 0; block <= lastAddedIndex >>> 6; block++) {
+            int first = block << 6;
+            MappedByteBuffer buffer = chunkOf(first);
+            long word = buffer.getLong(wordPosition(first));
+
+            while (word != 0) {
+                int i = first + Long.numberOfTrailingZeros(word);
+
+                visitor.visit(buffer.getLong(valuePosition(i)));
+                word &= word - 1;
+            }
+        }
+    }
+
+    // A gap (left by mixing add and append) cuts off the slots below it, walk from the root
+    private void traverseReachable(LongKAryTree.IVisitor visitor) {
+        if (!isOccupied(1)) {
+            return;
+        }
+
+        Main.IntQueue nodes = new Main.IntQueue();
+
+        nodes.add(1); // root
+
+        while (!nodes.isEmpty()) {
+            int node = nodes.remove();
+            int childrenCount = childCount(node);
+
+            visitor.visit(get(node));
+
+            for (int j = 0; j < childrenCount; j++) {
+                nodes.add(nthChildIndex(node, j));
+            }
+        }
+    }
+
+    public void traversePreorder(LongKAryTree.IVisitor visitor) {
+        if (!isOccupied(1)) {
+            return;
+        }
+
+        Main.IntStack nodes = new Main.IntStack();
+
+        nodes.push(1); // root
+
+        while (!nodes.isEmpty()) {
+            int node = nodes.pop();
+
+            visitor.visit(get(node));
+
+            for (int j = childCount(node) - 1; j >= 0; j--) {
+                nodes.push(nthChildIndex(node, j));
+            }
+        }
+    }
+
+    /**
+     * Writes all changes to the storage device.
+     */
+    public void force() {
+        header.force();
+
+        for (MappedByteBuffer buffer: chunks) {
+            buffer.force();
+        }
+    }
+
+    /**
+     * Closes the file. Mapped regions stay valid until they are garbage collected,
+     * the tree must not be used after close.
+     */
+    @Override
+    public void close() throws IOException {
+        force();
+        chunks.clear();
+        channel.close();
+    }
+}
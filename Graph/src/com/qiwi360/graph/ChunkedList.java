@@ -0,0 +1,114 @@
+package com.qiwi360.graph;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * Array list split into chunks of CHUNK_SIZE elements that lists forked from each other
+ * share until one of them writes to a chunk, see Graph.snapshot. fork takes
+ * O(size / CHUNK_SIZE) and the first write to a shared chunk copies only that chunk.
+ */
+final class ChunkedList<E> extends AbstractList<E> implements RandomAccess {
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private Object[][] chunks = new Object[0][];
+    private Object[] chunkOwners = new Object[0];
+    private int size = 0;
+
+    // Chunks with this owner belong to this list alone and may be changed in place
+    private Object owner = new Object();
+
+    ChunkedList<E> fork() {
+        ChunkedList<E> copy = new ChunkedList<>();
+
+        copy.chunks = chunks.clone();
+        copy.chunkOwners = new Object[chunks.length];
+        copy.size = size;
+
+        // From now on both lists copy a chunk before changing it
+        owner = new Object();
+
+        return copy;
+    }
+
+    private void checkIndex(int i, int limit) {
+        if (i < 0 || i >= limit) {
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+        }
+    }
+
+    private Object[] writableChunk(int chunk) {
+        if (chunkOwners[chunk] != owner) {
+            chunks[chunk] = chunks[chunk].clone();
+            chunkOwners[chunk] = owner;
+        }
+
+        return chunks[chunk];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E get(int i) {
+        checkIndex(i, size);
+
+        return (E) chunks[i >>> CHUNK_BITS][i & CHUNK_MASK];
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E set(int i, E element) {
+        checkIndex(i, size);
+
+        Object[] chunk = writableChunk(i >>> CHUNK_BITS);
+        E previous = (E) chunk[i & CHUNK_MASK];
+
+        chunk[i & CHUNK_MASK] = element;
+
+        return previous;
+    }
+
+    @Override
+    public void add(int i, E element) {
+        checkIndex(i, size + 1);
+
+        if (size == chunks.length << CHUNK_BITS) {
+            chunks = Arrays.copyOf(chunks, chunks.length + 1);
+            chunkOwners = Arrays.copyOf(chunkOwners, chunks.length);
+            chunks[chunks.length - 1] = new Object[CHUNK_SIZE];
+            chunkOwners[chunks.length - 1] = owner;
+        }
+
+        size++;
+        modCount++;
+
+        // Appending is the common case, inserting elsewhere shifts the tail by one
+        for (int j = size - 1; j > i; j--) {
+            set(j, get(j - 1));
+        }
+
+        set(i, element);
+    }
+
+    @Override
+    public E remove(int i) {
+        E removed = get(i);
+
+        for (int j = i; j < size - 1; j++) {
+            set(j, get(j + 1));
+        }
+
+        set(size - 1, null);
+        size--;
+        modCount++;
+
+        return removed;
+    }
+}
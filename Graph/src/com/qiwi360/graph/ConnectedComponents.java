@@ -0,0 +1,172 @@
+package com.qiwi360.graph;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Union-find over vertex ids 0..vertexCount() - 1, see Graph.components.
+ * connected and componentSize take near constant time, union adds an edge
+ * without recomputing anything. Ids are the ones the graph had when the index was built.
+ */
+public final class ConnectedComponents {
+    private int[] parent;
+    private int[] size; // valid for roots only
+    private int vertexCount;
+    private int componentCount;
+
+    // Takes a forest of parent links, e.g. from a Builder
+    ConnectedComponents(int[] parent) {
+        this.parent = parent;
+        vertexCount = parent.length;
+        size = new int[vertexCount];
+
+        for (int v = 0; v < vertexCount; v++) {
+            parent[v] = find(v);
+            size[parent[v]]++;
+
+            if (parent[v] == v) {
+                componentCount++;
+            }
+        }
+    }
+
+    public int vertexCount() {
+        return vertexCount;
+    }
+
+    public int componentCount() {
+        return componentCount;
+    }
+
+    /**
+     * Representative of the component of v, the same for all vertices of a component
+     * until it is merged with another one.
+     */
+    public int find(int v) {
+        if (v < 0 || v >= vertexCount) {
+            throw new IndexOutOfBoundsException("No vertex with id " + v);
+        }
+
+        // Path halving: every other vertex on the way up skips its parent
+        while (parent[v] != v) {
+            parent[v] = parent[parent[v]];
+            v = parent[v];
+        }
+
+        return v;
+    }
+
+    public boolean connected(int a, int b) {
+        return find(a) == find(b);
+    }
+
+    public int componentSize(int v) {
+        return size[find(v)];
+    }
+
+    /**
+     * Merges the components of a and b as an edge between them would, returns false
+     * if they already were connected. The smaller component goes under the larger one.
+     */
+    public boolean union(int a, int b) {
+        int rootA = find(a);
+        int rootB = find(b);
+
+        if (rootA == rootB) {
+            return false;
+        }
+
+        if (size[rootA] < size[rootB]) {
+            int swap = rootA;
+
+            rootA = rootB;
+            rootB = swap;
+        }
+
+        parent[rootB] = rootA;
+        size[rootA] += size[rootB];
+        componentCount--;
+
+        return true;
+    }
+
+    /**
+     * Adds an isolated vertex and returns its id, which is the next one.
+     */
+    public int addVertex() {
+        if (vertexCount == parent.length) {
+            parent = Arrays.copyOf(parent, Math.max(16, vertexCount * 2));
+            size = Arrays.copyOf(size, parent.length);
+        }
+
+        parent[vertexCount] = vertexCount;
+        size[vertexCount] = 1;
+        componentCount++;
+
+        return vertexCount++;
+    }
+
+    /**
+     * Union-find that many threads can fill at once. Roots are linked by id, the larger
+     * id goes under the smaller one with a CAS, so concurrent unions never form a cycle.
+     */
+    static final class Builder {
+        private final AtomicIntegerArray parent;
+
+        Builder(int vertexCount) {
+            parent = new AtomicIntegerArray(vertexCount);
+
+            for (int v = 0; v < vertexCount; v++) {
+                parent.set(v, v);
+            }
+        }
+
+        private int find(int v) {
+            int p = parent.get(v);
+
+            while (p != v) {
+                int grandparent = parent.get(p);
+
+                // Losing this race only means the path stays a bit longer
+                parent.compareAndSet(v, p, grandparent);
+                v = p;
+                p = parent.get(v);
+            }
+
+            return v;
+        }
+
+        void union(int a, int b) {
+            while (true) {
+                a = find(a);
+                b = find(b);
+
+                if (a == b) {
+                    return;
+                }
+
+                if (a < b) {
+                    int swap = a;
+
+                    a = b;
+                    b = swap;
+                }
+
+                // Fails if another thread has linked a meanwhile, then we retry from the new roots
+                if (parent.compareAndSet(a, a, b)) {
+                    return;
+                }
+            }
+        }
+
+        ConnectedComponents build() {
+            int[] links = new int[parent.length()];
+
+            for (int v = 0; v < links.length; v++) {
+                links[v] = parent.get(v);
+            }
+
+            return new ConnectedComponents(links);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.qiwi360.graph;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+/**
+ * Immutable compressed sparse row snapshot of a Graph, see Graph.freeze.
+ * Vertices are numbered 0..vertexCount() - 1, the arcs of vertex v are
+ * firstArc(v) .. firstArc(v + 1) - 1. Every undirected edge is stored as two arcs.
+ */
+public final class CsrGraph<TVal> {
+    private final Object[] values;
+    private final Map<TVal, Integer> ids;
+    private final int[] offsets;
+    private final int[] targets;
+    private final double[] weights;
+
+    CsrGraph(Object[] values, Map<TVal, Integer> ids, int[] offsets, int[] targets, double[] weights) {
+        this.values = values;
+        this.ids = ids;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.weights = weights;
+    }
+
+    public int vertexCount() {
+        return values.length;
+    }
+
+    public int arcCount() {
+        return targets.length;
+    }
+
+    /**
+     * Id of the first vertex with the value, -1 if there is none.
+     */
+    public int id(TVal value) {
+        Integer id = ids.get(value);
+
+        return id == null ? -1 : id;
+    }
+
+    @SuppressWarnings("unchecked")
+    public TVal value(int id) {
+        return (TVal) values[id];
+    }
+
+    public int degree(int v) {
+        return offsets[v + 1] - offsets[v];
+    }
+
+    public int firstArc(int v) {
+        return offsets[v];
+    }
+
+    public int target(int arc) {
+        return targets[arc];
+    }
+
+    public double weight(int arc) {
+        return weights[arc];
+    }
+
+    /**
+     * Scratch space for searches. Reusing one Search keeps queries free of allocations,
+     * a Search must not be shared between threads.
+     */
+    public Search newSearch() {
+        return new Search();
+    }
+
+    public final class Search {
+        private final int[] pending = new int[Math.max(targets.length, values.length) + 1];
+        private final int[] parent = new int[values.length];
+        private final int[] mark = new int[values.length];
+        private int epoch = 0;
+
+        private void nextEpoch() {
+            if (++epoch == 0) {
+                Arrays.fill(mark, 0);
+                epoch = 1;
+            }
+        }
+
+        private boolean isMarked(int v) {
+            return mark[v] == epoch;
+        }
+
+        /**
+         * Visits every vertex reachable from start in breadth first order, returns their number.
+         */
+        public int bfs(int start, IntConsumer visitor) {
+            nextEpoch();
+
+            int head = 0;
+            int tail = 0;
+
+            pending[tail++] = start;
+            mark[start] = epoch;
+
+            while (head < tail) {
+                int v = pending[head++];
+
+                visitor.accept(v);
+
+                for (int arc = offsets[v]; arc < offsets[v + 1]; arc++) {
+                    int w = targets[arc];
+
+                    if (!isMarked(w)) {
+                        mark[w] = epoch;
+                        pending[tail++] = w;
+                    }
+                }
+            }
+
+            return tail;
+        }
+
+        /**
+         * Depth first, in the same order as Graph.DFSTraverse. Returns the number of visited vertices.
+         */
+        public int dfs(int start, IntConsumer visitor) {
+            nextEpoch();
+
+            int top = 0;
+            int count = 0;
+
+            pending[top++] = start;
+
+            while (top > 0) {
+                int v = pending[--top];
+
+                if (isMarked(v)) {
+                    continue;
+                }
+
+                mark[v] = epoch;
+                visitor.accept(v);
+                count++;
+
+                for (int arc = offsets[v]; arc < offsets[v + 1]; arc++) {
+                    int w = targets[arc];
+
+                    // Every arc is pushed at most once, so pending never overflows
+                    if (!isMarked(w)) {
+                        pending[top++] = w;
+                    }
+                }
+            }
+
+            return count;
+        }
+
+        /**
+         * Path with the fewest edges from start to end as vertex ids, empty if end is unreachable.
+         */
+        public int[] shortestPath(int start, int end) {
+            nextEpoch();
+
+            int head = 0;
+            int tail = 0;
+
+            pending[tail++] = start;
+            mark[start] = epoch;
+            parent[start] = -1;
+
+            while (head < tail) {
+                int v = pending[head++];
+
+                if (v == end) {
+                    int length = 0;
+
+                    for (int u = end; u != -1; u = parent[u]) {
+                        length++;
+                    }
+
+                    int[] path = new int[length];
+
+                    for (int u = end; u != -1; u = parent[u]) {
+                        path[--length] = u;
+                    }
+
+                    return path;
+                }
+
+                for (int arc = offsets[v]; arc < offsets[v + 1]; arc++) {
+                    int w = targets[arc];
+
+                    if (!isMarked(w)) {
+                        mark[w] = epoch;
+                        parent[w] = v;
+                        pending[tail++] = w;
+                    }
+                }
+            }
+
+            return new int[0];
+        }
+    }
+}
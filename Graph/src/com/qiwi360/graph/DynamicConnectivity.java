@@ -0,0 +1,438 @@
+package com.qiwi360.graph;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Connectivity of many what-if scenarios at once, see Graph.dynamicConnectivity.
+ * Every scenario is the base graph with some edges closed. Scenarios, closed edges
+ * and questions are collected first and answered together by solve.
+ *
+ * solve works offline: a closed edge is present in every scenario except the ones
+ * closing it, i.e. on a few ranges of scenario numbers. The ranges go into a segment
+ * tree over the scenarios, and a walk over the tree unions the edges of a node on the
+ * way down and rolls them back on the way up, so at a leaf the union-find holds exactly
+ * the edges of that scenario. Edges no scenario closes are merged once beforehand.
+ * This costs O((n + m + c log s) log n) for n vertices, m edges, s scenarios and
+ * c closures in total, instead of a traversal per scenario.
+ */
+public final class DynamicConnectivity {
+    private final int vertexCount;
+    private final int[] edgeFrom;
+    private final int[] edgeTo;
+    private final Map<Long, int[]> edgesBetween = new HashMap<>();
+
+    private int scenarioCount = 0;
+
+    // Closures as (edge, scenario) pairs
+    private int[] closedEdge = new int[16];
+    private int[] closedScenario = new int[16];
+    private int closureCount = 0;
+
+    // Questions: scenario, vertices and answer, second vertex is -1 when asking for a component size
+    private int[] questionScenario = new int[16];
+    private int[] questionFirst = new int[16];
+    private int[] questionSecond = new int[16];
+    private int[] answers;
+    private int questionCount = 0;
+
+    private int[] componentCounts;
+
+    // Rollback union-find over the components of the never closed edges
+    private int[] parent;
+    private int[] size;
+    private int[] history; // roots linked under another root, in order
+    private int historySize;
+    private int components;
+
+    DynamicConnectivity(int vertexCount, int[] edgeFrom, int[] edgeTo) {
+        this.vertexCount = vertexCount;
+        this.edgeFrom = edgeFrom;
+        this.edgeTo = edgeTo;
+
+        for (int e = 0; e < edgeFrom.length; e++) {
+            edgesBetween.merge(pairKey(edgeFrom[e], edgeTo[e]), new int[] {e}, DynamicConnectivity::concat);
+        }
+    }
+
+    // Edges keep their direction, like in Graph.removeEdge
+    private long pairKey(int from, int to) {
+        return (long) from * vertexCount + to;
+    }
+
+    private static int[] concat(int[] first, int[] second) {
+        int[] result = Arrays.copyOf(first, first.length + second.length);
+
+        System.arraycopy(second, 0, result, first.length, second.length);
+
+        return result;
+    }
+
+    private void checkVertex(int v) {
+        if (v < 0 || v >= vertexCount) {
+            throw new IndexOutOfBoundsException("No vertex with id " + v);
+        }
+    }
+
+    private void checkScenario(int scenario) {
+        if (scenario < 0 || scenario >= scenarioCount) {
+            throw new IndexOutOfBoundsException("No scenario " + scenario);
+        }
+    }
+
+    private void checkNotSolved() {
+        if (answers != null) {
+            throw new IllegalStateException("Scenarios are already solved");
+        }
+    }
+
+    private void checkSolved() {
+        if (answers == null) {
+            throw new IllegalStateException("Scenarios are not solved yet");
+        }
+    }
+
+    /**
+     * Adds a scenario with all edges open and returns its number.
+     */
+    public int newScenario() {
+        checkNotSolved();
+
+        return scenarioCount++;
+    }
+
+    /**
+     * Closes the edges going from one vertex to the other in the scenario, the ones
+     * Graph.removeEdge(from, to) would remove. Edges stored the other way stay open.
+     */
+    public void close(int scenario, int from, int to) {
+        checkNotSolved();
+        checkScenario(scenario);
+        checkVertex(from);
+        checkVertex(to);
+
+        int[] edges = edgesBetween.get(pairKey(from, to));
+
+        if (edges == null) {
+            return;
+        }
+
+        for (int e: edges) {
+            if (closureCount == closedEdge.length) {
+                closedEdge = Arrays.copyOf(closedEdge, closureCount * 2);
+                closedScenario = Arrays.copyOf(closedScenario, closureCount * 2);
+            }
+
+            closedEdge[closureCount] = e;
+            closedScenario[closureCount] = scenario;
+            closureCount++;
+        }
+    }
+
+    private int ask(int scenario, int first, int second) {
+        checkNotSolved();
+        checkScenario(scenario);
+
+        if (questionCount == questionScenario.length) {
+            questionScenario = Arrays.copyOf(questionScenario, questionCount * 2);
+            questionFirst = Arrays.copyOf(questionFirst, questionCount * 2);
+            questionSecond = Arrays.copyOf(questionSecond, questionCount * 2);
+        }
+
+        questionScenario[questionCount] = scenario;
+        questionFirst[questionCount] = first;
+        questionSecond[questionCount] = second;
+
+        return questionCount++;
+    }
+
+    /**
+     * Asks whether a and b are connected in the scenario, returns the question number for connected.
+     */
+    public int askConnected(int scenario, int a, int b) {
+        checkVertex(a);
+        checkVertex(b);
+
+        return ask(scenario, a, b);
+    }
+
+    /**
+     * Asks for the number of vertices connected to v in the scenario, v included.
+     * Returns the question number for componentSize.
+     */
+    public int askComponentSize(int scenario, int v) {
+        checkVertex(v);
+
+        return ask(scenario, v, -1);
+    }
+
+    public boolean connected(int question) {
+        checkSolved();
+
+        if (questionSecond[question] < 0) {
+            throw new IllegalArgumentException("Question " + question + " asks for a component size");
+        }
+
+        return answers[question] != 0;
+    }
+
+    public int componentSize(int question) {
+        checkSolved();
+
+        if (questionSecond[question] >= 0) {
+            throw new IllegalArgumentException("Question " + question + " asks about connectivity");
+        }
+
+        return answers[question];
+    }
+
+    public int componentCount(int scenario) {
+        checkSolved();
+        checkScenario(scenario);
+
+        return componentCounts[scenario];
+    }
+
+    /**
+     * Answers all questions. No scenarios, closures or questions can be added afterwards.
+     */
+    public void solve() {
+        checkNotSolved();
+
+        answers = new int[questionCount];
+        componentCounts = new int[scenarioCount];
+
+        if (scenarioCount == 0) {
+            return;
+        }
+
+        long[] sorted = sortedClosures();
+        boolean[] closedSomewhere = new boolean[edgeFrom.length];
+
+        for (long closure: sorted) {
+            closedSomewhere[(int) (closure / scenarioCount)] = true;
+        }
+
+        int[] superVertex = contractOpenEdges(closedSomewhere);
+
+        // Edges that are closed somewhere, placed on the ranges of scenarios where they are open
+        int[][] nodeEdges = new int[4 * scenarioCount][];
+        int[] nodeSizes = new int[4 * scenarioCount];
+
+        for (int i = 0; i < sorted.length; ) {
+            int e = (int) (sorted[i] / scenarioCount);
+            int from = superVertex[edgeFrom[e]];
+            int to = superVertex[edgeTo[e]];
+            int openFrom = 0;
+
+            for (; i < sorted.length && sorted[i] / scenarioCount == e; i++) {
+                int closedIn = (int) (sorted[i] % scenarioCount);
+
+                if (from != to && openFrom < closedIn) {
+                    addToRange(nodeEdges, nodeSizes, 1, 0, scenarioCount - 1, openFrom, closedIn - 1, e);
+                }
+
+                openFrom = closedIn + 1;
+            }
+
+            if (from != to && openFrom < scenarioCount) {
+                addToRange(nodeEdges, nodeSizes, 1, 0, scenarioCount - 1, openFrom, scenarioCount - 1, e);
+            }
+        }
+
+        // Questions grouped by scenario
+        int[] firstQuestion = new int[scenarioCount + 1];
+        int[] questions = new int[questionCount];
+
+        for (int q = 0; q < questionCount; q++) {
+            firstQuestion[questionScenario[q] + 1]++;
+        }
+
+        for (int s = 0; s < scenarioCount; s++) {
+            firstQuestion[s + 1] += firstQuestion[s];
+        }
+
+        int[] next = Arrays.copyOf(firstQuestion, scenarioCount);
+
+        for (int q = 0; q < questionCount; q++) {
+            questions[next[questionScenario[q]]++] = q;
+        }
+
+        walk(1, 0, scenarioCount - 1, nodeEdges, nodeSizes, superVertex, firstQuestion, questions);
+    }
+
+    // Closures as edge * scenarioCount + scenario, sorted and without duplicates,
+    // so the scenarios closing an edge come together and in increasing order
+    private long[] sortedClosures() {
+        long[] sorted = new long[closureCount];
+        int length = 0;
+
+        for (int i = 0; i < closureCount; i++) {
+            sorted[i] = (long) closedEdge[i] * scenarioCount + closedScenario[i];
+        }
+
+        Arrays.sort(sorted);
+
+        for (int i = 0; i < sorted.length; i++) {
+            if (length == 0 || sorted[i] != sorted[length - 1]) {
+                sorted[length++] = sorted[i];
+            }
+        }
+
+        return Arrays.copyOf(sorted, length);
+    }
+
+    // Merges the edges that are never closed with path compression and numbers the resulting
+    // components, which become the vertices of the rollback union-find
+    private int[] contractOpenEdges(boolean[] closedSomewhere) {
+        int[] root = new int[vertexCount];
+
+        for (int v = 0; v < vertexCount; v++) {
+            root[v] = v;
+        }
+
+        for (int e = 0; e < edgeFrom.length; e++) {
+            if (!closedSomewhere[e]) {
+                int a = compressedFind(root, edgeFrom[e]);
+                int b = compressedFind(root, edgeTo[e]);
+
+                if (a != b) {
+                    root[Math.max(a, b)] = Math.min(a, b);
+                }
+            }
+        }
+
+        int[] superVertex = new int[vertexCount];
+        int superCount = 0;
+
+        // Roots have the smallest id of their component, so they are numbered before their members
+        for (int v = 0; v < vertexCount; v++) {
+            int r = compressedFind(root, v);
+
+            superVertex[v] = r == v ? superCount++ : superVertex[r];
+        }
+
+        parent = new int[superCount];
+        size = new int[superCount];
+        history = new int[superCount];
+        historySize = 0;
+        components = superCount;
+
+        for (int s = 0; s < superCount; s++) {
+            parent[s] = s;
+        }
+
+        for (int v = 0; v < vertexCount; v++) {
+            size[superVertex[v]]++;
+        }
+
+        return superVertex;
+    }
+
+    private static int compressedFind(int[] root, int v) {
+        while (root[v] != v) {
+            root[v] = root[root[v]];
+            v = root[v];
+        }
+
+        return v;
+    }
+
+    private static void addToRange(int[][] nodeEdges, int[] nodeSizes, int node, int left, int right,
+                                   int from, int to, int e) {
+        if (to < left || right < from) {
+            return;
+        }
+
+        if (from <= left && right <= to) {
+            if (nodeEdges[node] == null) {
+                nodeEdges[node] = new int[4];
+            } else if (nodeSizes[node] == nodeEdges[node].length) {
+                nodeEdges[node] = Arrays.copyOf(nodeEdges[node], nodeSizes[node] * 2);
+            }
+
+            nodeEdges[node][nodeSizes[node]++] = e;
+            return;
+        }
+
+        int middle = (left + right) >>> 1;
+
+        addToRange(nodeEdges, nodeSizes, 2 * node, left, middle, from, to, e);
+        addToRange(nodeEdges, nodeSizes, 2 * node + 1, middle + 1, right, from, to, e);
+    }
+
+    // No path compression, so every union can be undone by resetting one link
+    private int find(int v) {
+        while (parent[v] != v) {
+            v = parent[v];
+        }
+
+        return v;
+    }
+
+    private void union(int a, int b) {
+        a = find(a);
+        b = find(b);
+
+        if (a == b) {
+            return;
+        }
+
+        if (size[a] < size[b]) {
+            int swap = a;
+
+            a = b;
+            b = swap;
+        }
+
+        parent[b] = a;
+        size[a] += size[b];
+        history[historySize++] = b;
+        components--;
+    }
+
+    private void rollback(int toHistorySize) {
+        while (historySize > toHistorySize) {
+            int b = history[--historySize];
+            int a = parent[b];
+
+            size[a] -= size[b];
+            parent[b] = b;
+            components++;
+        }
+    }
+
+    private void walk(int node, int left, int right, int[][] nodeEdges, int[] nodeSizes,
+                      int[] superVertex, int[] firstQuestion, int[] questions) {
+        int mark = historySize;
+
+        for (int i = 0; i < nodeSizes[node]; i++) {
+            int e = nodeEdges[node][i];
+
+            union(superVertex[edgeFrom[e]], superVertex[edgeTo[e]]);
+        }
+
+        if (left == right) {
+            componentCounts[left] = components;
+
+            for (int i = firstQuestion[left]; i < firstQuestion[left + 1]; i++) {
+                int q = questions[i];
+                int first = find(superVertex[questionFirst[q]]);
+
+                if (questionSecond[q] < 0) {
+                    answers[q] = size[first];
+                } else {
+                    answers[q] = first == find(superVertex[questionSecond[q]]) ? 1 : 0;
+                }
+            }
+        } else {
+            int middle = (left + right) >>> 1;
+
+            walk(2 * node, left, middle, nodeEdges, nodeSizes, superVertex, firstQuestion, questions);
+            walk(2 * node + 1, middle + 1, right, nodeEdges, nodeSizes, superVertex, firstQuestion, questions);
+        }
+
+        rollback(mark);
+    }
+}
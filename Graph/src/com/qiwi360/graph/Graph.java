@@ -5,21 +5,55 @@ import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.LinkedTransferQueue;
-import java.util.stream.Collectors;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.IntStream;
 
 /**
  * Created by Max on 17.11.2015.
  */
 public class Graph<TVal, TWeight> {
-    private List<Vertex> vertices = new ArrayList<>();
-    private List<Edge> edges = new ArrayList<>();
+    private ChunkedList<Vertex> vertices = new ChunkedList<>();
+    private int edgeCount = 0;
+    private Map<TVal, Vertex> vertexIndex = new HashMap<>();
+
+    // Copy-on-write state, see snapshot. Vertices created in another generation may be
+    // shared with other graphs and are copied before the first change.
+    private Object generation = new Object();
+    private boolean sharedIndex = false;
+    private boolean sharedVertices = false;
+
+    // Handles of shared edges by the edge they stand for, see exposeEdge
+    private final Map<Edge, Edge> edgeHandles = new IdentityHashMap<>();
+
+    // Components of the whole graph, kept up to date while vertices and edges are only added
+    private ConnectedComponents componentIndex;
 
     public class Vertex {
         private TVal value;
 
+        // Position in the vertex list of the graphs storing this object, -1 once removed.
+        // Fixed once another graph shares the object, see current
+        private int id = -1;
+
         private List<Edge> incidentEdges = new ArrayList<>();
 
+        // Other end of every incident edge, in the same order: the outgoing half of each edge.
+        // May hold outdated or shared copies, only their ids count, see current
+        private List<Vertex> neighbors = new ArrayList<>();
+
+        // Generation of the graph allowed to change this vertex in place
+        private Object owner = generation;
+
+        // The object public methods hand out for this vertex, null if it is this one.
+        // Set on the copies a graph makes of its own vertices, see writable
+        private Vertex identity;
+
+        // The copy the graph stores now, for an object that was handed out and then copied
+        private Vertex storedCopy;
+
         public Vertex(TVal val) {
             value = val;
         }
@@ -28,32 +62,98 @@ public class Graph<TVal, TWeight> {
             return value;
         }
 
+        /**
+         * Position in the graph now, -1 once removed. Changes when an earlier vertex is removed.
+         */
+        public int getId() {
+            return current(this).id;
+        }
+
+        private Graph<TVal, TWeight> graph() {
+            return Graph.this;
+        }
+
+        // Neighbor over the given incident edge. Edges of a snapshot may point
+        // to the shared originals of copied vertices, so vertices are told apart by id
+        private Vertex across(Edge edge) {
+            return edge.to.id == id ? edge.from : edge.to;
+        }
+
         public List<Vertex> adjacent() {
-            return incidentEdges
-                    .stream()
-                    .map(edge -> edge.to.equals(this) ? edge.from : edge.to)
-                    .collect(Collectors.toCollection(LinkedList::new));
+            List<Vertex> current = current(this).neighbors;
+            List<Vertex> adjacent = new ArrayList<>(current.size());
+
+            for (int i = 0; i < current.size(); i++) {
+                adjacent.add(expose(current.get(i)));
+            }
+
+            return adjacent;
+        }
+
+        /**
+         * Number of incident edges, a loop counts twice.
+         */
+        public int degree() {
+            return current(this).incidentEdges.size();
+        }
+
+        /**
+         * Vertex at the other end of the i-th incident edge, 0 <= i < degree().
+         */
+        public Vertex neighbor(int i) {
+            return expose(current(this).neighbors.get(i));
+        }
+
+        public Edge incidentEdge(int i) {
+            return exposeEdge(current(this).incidentEdges.get(i));
+        }
+
+        /**
+         * Passes the id of every neighbor to action, skipping removed ones. Allocates nothing.
+         */
+        public void forEachNeighbor(IntConsumer action) {
+            List<Vertex> neighbors = current(this).neighbors;
+
+            for (int i = 0; i < neighbors.size(); i++) {
+                int neighborId = neighbors.get(i).id;
+
+                if (neighborId >= 0) {
+                    action.accept(neighborId);
+                }
+            }
         }
 
         public void addIncidentEdge(Edge edge) {
-            incidentEdges.add(edge);
+            Vertex vertex = writable(this);
+
+            vertex.incidentEdges.add(edge.origin);
+            vertex.neighbors.add(vertex.across(edge.origin));
         }
 
+        /**
+         * Same vertex of the same graph: same graph and id. A vertex of a snapshot is
+         * a different vertex, and a removed vertex is only equal to itself.
+         */
         @Override
         public boolean equals(Object o) {
             if (this == o) return true;
-            if (!(o instanceof Graph.Vertex)) return false;
+            if (!(o instanceof Graph.Vertex) || ((Graph<?, ?>.Vertex) o).graph() != graph()) return false;
 
             Vertex vertex = (Vertex) o;
 
-            return value.equals(vertex.value);
+            int id = getId();
+
+            return id >= 0 && id == vertex.getId();
         }
 
+        /**
+         * Depends on the graph and id, so it stays the same when edges are added and costs
+         * nothing on high degree vertices. It changes when removeVertex renumbers the vertex,
+         * so sets of vertices are rebuilt after a removal.
+         */
         @Override
         public int hashCode() {
-            int result = value.hashCode();
-            result = 31 * result + incidentEdges.hashCode();
-            return result;
+            return 31 * System.identityHashCode(graph()) + getId();
         }
 
         @Override
@@ -62,7 +162,17 @@ public class Graph<TVal, TWeight> {
         }
 
         public boolean removeIncidentEdge(Edge edge) {
-            return incidentEdges.remove(edge);
+            Vertex vertex = writable(this);
+            int i = vertex.incidentEdges.indexOf(edge);
+
+            if (i < 0) {
+                return false;
+            }
+
+            vertex.incidentEdges.remove(i);
+            vertex.neighbors.remove(i);
+
+            return true;
         }
     }
 
@@ -73,22 +183,42 @@ public class Graph<TVal, TWeight> {
 
         private TWeight weight;
 
+        // The edge as stored in the incident lists, other than this for a handle made by exposeEdge
+        private Edge origin = this;
+
         public Edge(Vertex from, Vertex to, TWeight weight) {
             this.from = from;
             this.to = to;
             this.weight = weight;
         }
 
+        private Graph<TVal, TWeight> graph() {
+            return Graph.this;
+        }
+
         public TWeight getWeight() {
             return weight;
         }
 
         public Vertex getTo() {
-            return to;
+            return expose(to);
         }
 
         public Vertex getFrom() {
-            return from;
+            return expose(from);
+        }
+
+        /**
+         * Same edge of the graph, e.g. an edge and a handle to it.
+         */
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Graph.Edge && ((Edge) o).origin == origin;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(origin);
         }
 
         @Override
@@ -102,20 +232,67 @@ public class Graph<TVal, TWeight> {
     }
 
     public void addVertex(TVal value) {
-        vertices.add(new Vertex(value));
+        Vertex vertex = new Vertex(value);
+
+        vertex.id = vertices.size();
+        vertices.add(vertex);
+
+        // Lookups by value return the first vertex added with it
+        if (!vertexIndex.containsKey(value)) {
+            ownIndex();
+            vertexIndex.put(value, vertex);
+        }
+
+        if (componentIndex != null) {
+            componentIndex.addVertex();
+        }
     }
 
     public void removeVertex(Vertex vertex) {
-        vertices.remove(vertex);
+        // Vertices of another graph are found by id, like everywhere else
+        int position = vertex.graph() == this ? current(vertex).id : vertex.id;
+
+        if (position < 0 || position >= vertices.size() || !vertices.get(position).value.equals(vertex.value)) {
+            return;
+        }
+
+        // Renumbering would change ids of vertices other graphs still use
+        if (sharedVertices) {
+            copyInto(this);
+        }
+
+        componentIndex = null;
+        vertices.remove(position).id = -1;
+
+        // Keep ids dense
+        for (int i = position; i < vertices.size(); i++) {
+            vertices.get(i).id = i;
+        }
+
+        ownIndex();
+        vertexIndex.remove(vertex.value);
+
+        // Another vertex with the same value may still be there
+        vertices.stream()
+                .filter(v -> v.value.equals(vertex.value))
+                .findFirst()
+                .ifPresent(v -> vertexIndex.put(v.value, v));
     }
 
     public void addEdge(Vertex from, Vertex to, TWeight weight) {
+        from = writable(from);
+        to = writable(to);
+
         Edge edge = new Edge(from, to, weight);
 
         from.addIncidentEdge(edge);
         to.addIncidentEdge(edge);
 
-        edges.add(edge);
+        edgeCount++;
+
+        if (componentIndex != null && from.id >= 0 && to.id >= 0) {
+            componentIndex.union(from.id, to.id);
+        }
     }
 
     public void addEdge(TVal from, TVal to, TWeight weight) {
@@ -127,21 +304,110 @@ public class Graph<TVal, TWeight> {
         }
     }
 
+    public int vertexCount() {
+        return vertices.size();
+    }
+
+    public int edgeCount() {
+        return edgeCount;
+    }
+
+    /**
+     * Vertex with the given id, ids are 0..vertexCount() - 1 in the order vertices were added.
+     * They stay the same until a vertex is removed, which moves the following ones down by one.
+     */
+    public Vertex getVertexById(int id) {
+        return expose(vertices.get(id));
+    }
+
+    /**
+     * Id of the first vertex with the value, -1 if there is none.
+     */
+    public int idOf(TVal value) {
+        Vertex vertex = getVertex(value);
+
+        return vertex == null ? -1 : vertex.id;
+    }
+
     private Vertex getVertex(TVal from) {
-        return vertices
-                .stream()
-                .filter(vertex -> vertex.value.equals(from))
-                .findFirst().orElseGet(() -> null);
+        Vertex vertex = vertexIndex.get(from);
+
+        return vertex == null ? null : current(vertex);
     }
 
+    /**
+     * Removes the edges going from one vertex to the other, in O(degree of both).
+     * Every edge is in the incident lists of its ends, so there is no need to look anywhere else.
+     */
     public void removeEdge(Vertex from, Vertex to) {
-        List<Edge> edgesToRemoveList = edges
-                .stream().filter(edge -> edge.from.equals(from) && edge.to.equals(to))
-                .collect(Collectors.toCollection(LinkedList::new));
+        List<Edge> edgesToRemoveList = new ArrayList<>();
+        Vertex fromVertex = current(from);
+        int toId = current(to).id;
+
+        for (Edge edge: fromVertex.incidentEdges) {
+            // A loop is in the list twice
+            if (fromVertex.id >= 0 && edge.from.id == fromVertex.id && edge.to.id == toId && !edgesToRemoveList.contains(edge)) {
+                edgesToRemoveList.add(edge);
+            }
+        }
 
-        edgesToRemoveList.forEach((edge) -> { edge.from.removeIncidentEdge(edge); edge.to.removeIncidentEdge(edge);});
+        edgesToRemoveList.forEach((edge) -> { writable(edge.from).removeIncidentEdge(edge); writable(edge.to).removeIncidentEdge(edge);});
 
-        edges.removeAll(edgesToRemoveList);
+        edgeCount -= edgesToRemoveList.size();
+
+        // Union-find can't split components
+        if (!edgesToRemoveList.isEmpty()) {
+            componentIndex = null;
+        }
+    }
+
+    /**
+     * Removes every edge accepted by predicate in a single pass over the incident lists,
+     * returns the number of removed edges. predicate may be asked about an edge twice,
+     * once from each end, and must give the same answer both times.
+     */
+    public int removeEdges(Predicate<? super Edge> predicate) {
+        Set<Edge> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+        Predicate<? super Edge> test = exposed(predicate);
+        Predicate<Edge> isRemoved = edge -> removed.contains(edge) || (test.test(edge) && removed.add(edge));
+
+        for (int id = 0; id < vertices.size(); id++) {
+            List<Edge> incidentEdges = vertices.get(id).incidentEdges;
+            int kept = 0;
+
+            while (kept < incidentEdges.size() && !isRemoved.test(incidentEdges.get(kept))) {
+                kept++;
+            }
+
+            if (kept == incidentEdges.size()) {
+                continue;
+            }
+
+            // Compact both lists in place, only vertices that lose an edge get copied in a snapshot
+            Vertex vertex = writable(vertices.get(id));
+            int size = vertex.incidentEdges.size();
+
+            for (int i = kept + 1; i < size; i++) {
+                Edge edge = vertex.incidentEdges.get(i);
+
+                if (!isRemoved.test(edge)) {
+                    vertex.incidentEdges.set(kept, edge);
+                    vertex.neighbors.set(kept, vertex.neighbors.get(i));
+                    kept++;
+                }
+            }
+
+            vertex.incidentEdges.subList(kept, size).clear();
+            vertex.neighbors.subList(kept, size).clear();
+        }
+
+        edgeCount -= removed.size();
+
+        if (!removed.isEmpty()) {
+            componentIndex = null;
+        }
+
+        return removed.size();
     }
 
     public void removeEdge(TVal from, TVal to) {
@@ -153,20 +419,462 @@ public class Graph<TVal, TWeight> {
         }
     }
 
-    private void removeEdge(Edge edge) {
-        removeEdge(edge.from, edge.to);
+    // Edge filters let traversals skip edges instead of removing them from a copy of the graph
+
+    private static final Predicate<Object> ALL_EDGES = edge -> true;
+
+    /**
+     * Edge filter that rejects the edges removeEdge(from, to) would remove.
+     */
+    public Predicate<Edge> excluding(TVal from, TVal to) {
+        Vertex fromVertex = getVertex(from);
+        Vertex toVertex = getVertex(to);
+        Set<Edge> excluded = new HashSet<>();
+
+        if (fromVertex != null && toVertex != null) {
+            for (Edge edge: fromVertex.incidentEdges) {
+                if (edge.from.id == fromVertex.id && edge.to.id == toVertex.id) {
+                    excluded.add(edge);
+                }
+            }
+        }
+
+        return edge -> !excluded.contains(edge);
+    }
+
+    /**
+     * Splits the vertices into classes, see VertexClassFilter.
+     */
+    public VertexClassFilter classifyVertices(Function<? super TVal, ?> classOf) {
+        return new VertexClassFilter(classOf);
+    }
+
+    /**
+     * Edge filter that forbids edges between some classes of vertices, e.g. between regions.
+     * The class of every vertex is computed once, so testing an edge is two array reads.
+     * Built for the vertices the graph has now, vertices added later are never filtered.
+     */
+    public class VertexClassFilter implements Predicate<Edge> {
+        private final Map<Object, Integer> classIds = new HashMap<>();
+        private final int[] classes; // by vertex id
+        private final boolean[][] forbidden;
+
+        private VertexClassFilter(Function<? super TVal, ?> classOf) {
+            classes = new int[vertices.size()];
+
+            for (int id = 0; id < classes.length; id++) {
+                Object vertexClass = classOf.apply(vertices.get(id).value);
+                Integer classId = classIds.get(vertexClass);
+
+                if (classId == null) {
+                    classId = classIds.size();
+                    classIds.put(vertexClass, classId);
+                }
+
+                classes[id] = classId;
+            }
+
+            forbidden = new boolean[classIds.size()][classIds.size()];
+        }
+
+        /**
+         * Forbids edges between the two classes, in both directions.
+         */
+        public VertexClassFilter forbid(Object firstClass, Object secondClass) {
+            Integer first = classIds.get(firstClass);
+            Integer second = classIds.get(secondClass);
+
+            // No vertex has a class we haven't seen, so there is nothing to forbid
+            if (first != null && second != null) {
+                forbidden[first][second] = true;
+                forbidden[second][first] = true;
+            }
+
+            return this;
+        }
+
+        @Override
+        public boolean test(Edge edge) {
+            int from = edge.origin.from.id;
+            int to = edge.origin.to.id;
+
+            if (from < 0 || to < 0 || from >= classes.length || to >= classes.length) {
+                return true;
+            }
+
+            return !forbidden[classes[from]][classes[to]];
+        }
+    }
+
+    private static final int PARALLEL_COMPONENTS_THRESHOLD = 1 << 15;
+
+    /**
+     * Connected components of the graph seen through filter. Large graphs are
+     * processed in parallel, every vertex unions itself with its neighbors of larger id.
+     */
+    public ConnectedComponents components(Predicate<? super Edge> filter) {
+        Predicate<? super Edge> edgeFilter = exposed(filter);
+        ConnectedComponents.Builder builder = new ConnectedComponents.Builder(vertices.size());
+        IntStream ids = IntStream.range(0, vertices.size());
+
+        if (vertices.size() >= PARALLEL_COMPONENTS_THRESHOLD) {
+            ids = ids.parallel();
+        }
+
+        ids.forEach(id -> {
+            Vertex vertex = vertices.get(id);
+
+            for (int i = 0; i < vertex.neighbors.size(); i++) {
+                int neighborId = vertex.neighbors.get(i).id;
+
+                if (neighborId > id && edgeFilter.test(vertex.incidentEdges.get(i))) {
+                    builder.union(id, neighborId);
+                }
+            }
+        });
+
+        return builder.build();
+    }
+
+    public ConnectedComponents components() {
+        return components(ALL_EDGES);
+    }
+
+    /**
+     * Built on first use, then updated by addVertex and addEdge.
+     * Removing anything drops it, the next query builds it again.
+     */
+    private ConnectedComponents componentIndex() {
+        if (componentIndex == null) {
+            componentIndex = components();
+        }
+
+        return componentIndex;
+    }
+
+    public boolean connected(TVal a, TVal b) {
+        Vertex first = getVertex(a);
+        Vertex second = getVertex(b);
+
+        return first != null && second != null && componentIndex().connected(first.id, second.id);
+    }
+
+    public int componentCount() {
+        return componentIndex().componentCount();
+    }
+
+    /**
+     * What-if scenarios of closed edges over the graph seen through filter, see DynamicConnectivity.
+     * Takes a copy of the edges, later changes of the graph don't affect it.
+     */
+    public DynamicConnectivity dynamicConnectivity(Predicate<? super Edge> filter) {
+        Predicate<? super Edge> edgeFilter = exposed(filter);
+        int[] edgeFrom = new int[edgeCount];
+        int[] edgeTo = new int[edgeCount];
+        int count = 0;
+
+        for (int id = 0; id < vertices.size(); id++) {
+            Vertex vertex = vertices.get(id);
+
+            // Every edge once, loops don't matter for connectivity
+            for (int i = 0; i < vertex.neighbors.size(); i++) {
+                int neighborId = vertex.neighbors.get(i).id;
+
+                Edge edge = vertex.incidentEdges.get(i);
+
+                if (neighborId > id && edgeFilter.test(edge)) {
+                    if (count == edgeFrom.length) {
+                        edgeFrom = Arrays.copyOf(edgeFrom, count * 2 + 1);
+                        edgeTo = Arrays.copyOf(edgeTo, count * 2 + 1);
+                    }
+
+                    // Closures follow the direction of the edge
+                    edgeFrom[count] = edge.from.id;
+                    edgeTo[count] = edge.to.id;
+                    count++;
+                }
+            }
+        }
+
+        return new DynamicConnectivity(vertices.size(), Arrays.copyOf(edgeFrom, count), Arrays.copyOf(edgeTo, count));
+    }
+
+    public DynamicConnectivity dynamicConnectivity() {
+        return dynamicConnectivity(ALL_EDGES);
     }
 
+    /**
+     * Independent copy of the graph, with its own vertices and edges.
+     */
     @Override
     protected Graph<TVal, TWeight> clone() throws CloneNotSupportedException {
         Graph<TVal, TWeight> graph = new Graph<>();
 
-        edges.forEach(graph.edges::add);
-        vertices.forEach(graph.vertices::add);
+        copyInto(graph);
 
         return graph;
     }
 
+    /**
+     * Copy-on-write fork of the graph, made in O(1). The fork and this graph share all
+     * vertices, edges and lists until one of them changes something: a change copies
+     * the affected chunk of the vertex list (see ChunkedList), and every changed vertex gets
+     * its own copy with its own incident edges. Other vertices stay shared, so
+     * what-if scenarios like closing a few roads cost only what they touch.
+     * removeVertex renumbers vertices, so it turns the graph into a full copy first.
+     *
+     * Every graph hands out one object per vertex, which stays the same through copies and
+     * renumbering, and never hands out a vertex or edge another graph created: the first time
+     * it exposes a shared vertex it stores a copy of its own that shares the lists, and a shared
+     * edge gets a handle, kept for the next time. Internal loops read ids and never need either.
+     * Vertices of another graph passed to a method are found by id. Adding a vertex with a new
+     * value or removing one copies the index by value once.
+     */
+    public Graph<TVal, TWeight> snapshot() {
+        Graph<TVal, TWeight> graph = new Graph<>();
+
+        graph.vertices = vertices.fork();
+        graph.edgeCount = edgeCount;
+        graph.vertexIndex = vertexIndex;
+        graph.sharedIndex = sharedIndex = true;
+        graph.sharedVertices = sharedVertices = true;
+
+        // Neither graph may change the existing vertices in place any more
+        generation = new Object();
+
+        return graph;
+    }
+
+    private void ownIndex() {
+        if (sharedIndex) {
+            vertexIndex = new HashMap<>(vertexIndex);
+            sharedIndex = false;
+        }
+    }
+
+    // The vertex as this graph stores it now. Vertices this graph created lead there through
+    // the object it handed out, the ids of other ones are always valid here: copies made
+    // by writable keep the id, and renumbering a shared graph replaces every vertex first
+    private Vertex current(Vertex vertex) {
+        if (vertex.graph() == this) {
+            Vertex identity = vertex.identity == null ? vertex : vertex.identity;
+
+            return identity.storedCopy == null ? identity : identity.storedCopy;
+        }
+
+        return vertex.id < 0 ? vertex : vertices.get(vertex.id);
+    }
+
+    // What a public method returns for a vertex, see snapshot
+    private Vertex expose(Vertex vertex) {
+        Vertex current = current(vertex);
+
+        if (current.graph() == this) {
+            return current.identity == null ? current : current.identity;
+        }
+
+        // A removed vertex belongs to no graph any more
+        return current.id < 0 ? current : adopt(current);
+    }
+
+    // Stores an object of this graph in place of a shared vertex. It keeps the shared lists
+    // and their owner, so writable still copies them before a change
+    private synchronized Vertex adopt(Vertex shared) {
+        Vertex current = vertices.get(shared.id);
+
+        // Another thread may have been first
+        if (current.graph() == this) {
+            return current.identity == null ? current : current.identity;
+        }
+
+        Vertex own = new Vertex(current.value);
+
+        own.id = current.id;
+        own.incidentEdges = current.incidentEdges;
+        own.neighbors = current.neighbors;
+        own.owner = current.owner;
+
+        vertices.set(own.id, own);
+
+        return own;
+    }
+
+    // The handle leads to the vertices this graph hands out, which stay right when it renumbers
+    private Edge exposeEdge(Edge edge) {
+        if (edge.graph() == this) {
+            return edge;
+        }
+
+        Edge stored = edge.origin;
+
+        synchronized (edgeHandles) {
+            Edge handle = edgeHandles.get(stored);
+
+            if (handle == null) {
+                handle = new Edge(expose(stored.from), expose(stored.to), stored.weight);
+                handle.origin = stored;
+                edgeHandles.put(stored, handle);
+            }
+
+            return handle;
+        }
+    }
+
+    // Filters get edges as exposeEdge hands them out, which only differs in a fork.
+    // VertexClassFilter reads only ids, so it gets the stored edges
+    private Predicate<? super Edge> exposed(Predicate<? super Edge> filter) {
+        if (!sharedVertices || filter == ALL_EDGES || filter instanceof Graph.VertexClassFilter) {
+            return filter;
+        }
+
+        return edge -> filter.test(exposeEdge(edge));
+    }
+
+    // The vertex as stored now, copied first if other graphs may share it
+    private Vertex writable(Vertex vertex) {
+        Vertex current = current(vertex);
+
+        if (current.owner == generation || current.id < 0) {
+            return current;
+        }
+
+        Vertex copy = new Vertex(current.value);
+
+        copy.id = current.id;
+        copy.incidentEdges = new ArrayList<>(current.incidentEdges);
+        copy.neighbors = new ArrayList<>(current.neighbors);
+
+        // Whoever holds the vertex gets to the copy from now on
+        if (current.graph() == this) {
+            copy.identity = current.identity == null ? current : current.identity;
+            copy.identity.storedCopy = copy;
+        }
+
+        vertices.set(copy.id, copy);
+
+        return copy;
+    }
+
+    // Replaces the content of target with new vertices and edges equal to the ones of this graph
+    private void copyInto(Graph<TVal, TWeight> target) {
+        List<Vertex> copies = new ArrayList<>(vertices.size());
+        Map<Vertex, Vertex> removedCopies = new IdentityHashMap<>();
+        Map<Edge, Edge> edgeCopies = new IdentityHashMap<>(edgeCount);
+
+        for (int id = 0; id < vertices.size(); id++) {
+            Vertex vertex = vertices.get(id);
+            Vertex copy = target.new Vertex(vertex.value);
+
+            copy.id = id;
+            copies.add(copy);
+
+            // Copying a graph into itself keeps the vertices it handed out
+            if (target == this && vertex.graph() == this) {
+                copy.identity = vertex.identity == null ? vertex : vertex.identity;
+                copy.identity.storedCopy = copy;
+            }
+        }
+
+        // Edges may outlive a removed vertex, which then gets a copy too
+        Function<Vertex, Vertex> copyOf = vertex -> vertex.id >= 0 ? copies.get(vertex.id)
+                : removedCopies.computeIfAbsent(vertex, removed -> target.new Vertex(removed.value));
+        Function<Edge, Edge> edgeCopyOf = edge -> edgeCopies.computeIfAbsent(edge,
+                original -> target.new Edge(copyOf.apply(original.from), copyOf.apply(original.to), original.weight));
+
+        for (int id = 0; id < copies.size(); id++) {
+            Vertex vertex = vertices.get(id);
+            List<Edge> incidentCopies = new ArrayList<>(vertex.incidentEdges.size());
+            List<Vertex> neighborCopies = new ArrayList<>(vertex.neighbors.size());
+
+            for (int i = 0; i < vertex.incidentEdges.size(); i++) {
+                incidentCopies.add(edgeCopyOf.apply(vertex.incidentEdges.get(i)));
+                neighborCopies.add(copyOf.apply(vertex.neighbors.get(i)));
+            }
+
+            copies.get(id).incidentEdges = incidentCopies;
+            copies.get(id).neighbors = neighborCopies;
+        }
+
+        // Every shared edge is gone, the handles made for them hold their vertices of this graph
+        if (target == this) {
+            edgeHandles.clear();
+        }
+
+        Map<TVal, Vertex> indexCopy = new HashMap<>(vertexIndex.size() * 2);
+
+        for (Map.Entry<TVal, Vertex> entry: vertexIndex.entrySet()) {
+            indexCopy.put(entry.getKey(), copies.get(entry.getValue().id));
+        }
+
+        target.vertices = new ChunkedList<>();
+        target.vertices.addAll(copies);
+        target.edgeCount = edgeCount;
+        target.vertexIndex = indexCopy;
+        target.sharedIndex = false;
+        target.sharedVertices = false;
+    }
+
+    /**
+     * Immutable CSR copy of the graph for read-mostly workloads.
+     * Vertex ids are positions in the vertex list, the neighbors of a vertex keep the order of adjacent().
+     */
+    public CsrGraph<TVal> freeze(ToDoubleFunction<? super TWeight> weightOf) {
+        int vertexCount = vertices.size();
+        Map<TVal, Integer> idsByValue = new HashMap<>(vertexCount * 2);
+        Object[] values = new Object[vertexCount];
+
+        for (int id = 0; id < vertexCount; id++) {
+            Vertex vertex = vertices.get(id);
+
+            idsByValue.putIfAbsent(vertex.value, id);
+            values[id] = vertex.value;
+        }
+
+        int[] offsets = new int[vertexCount + 1];
+        int[] targets = new int[2 * edgeCount];
+        double[] weights = new double[targets.length];
+        int arc = 0;
+
+        for (int id = 0; id < vertexCount; id++) {
+            Vertex vertex = vertices.get(id);
+
+            for (int i = 0; i < vertex.incidentEdges.size(); i++) {
+                Edge edge = vertex.incidentEdges.get(i);
+                int other = vertex.neighbors.get(i).id;
+
+                // Edges can outlive a removed vertex, skip them
+                if (other < 0) {
+                    continue;
+                }
+
+                if (arc == targets.length) {
+                    targets = Arrays.copyOf(targets, arc * 2 + 1);
+                    weights = Arrays.copyOf(weights, arc * 2 + 1);
+                }
+
+                targets[arc] = other;
+                weights[arc] = weightOf.applyAsDouble(edge.weight);
+                arc++;
+            }
+
+            offsets[id + 1] = arc;
+        }
+
+        if (arc != targets.length) {
+            targets = Arrays.copyOf(targets, arc);
+            weights = Arrays.copyOf(weights, arc);
+        }
+
+        return new CsrGraph<>(values, idsByValue, offsets, targets, weights);
+    }
+
+    /**
+     * freeze for numeric weights.
+     */
+    public CsrGraph<TVal> freeze() {
+        return freeze(weight -> ((Number) weight).doubleValue());
+    }
+
     interface IVisitor<T> {
         void visit(T val);
     }
@@ -216,38 +924,110 @@ public class Graph<TVal, TWeight> {
         }
     }
 
+    static class IntStack {
+        private int[] items = new int[16];
+        private int size = 0;
+
+        public void push(int value) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+            }
+
+            items[size++] = value;
+        }
+
+        public int pop() {
+            return items[--size];
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+    }
+
+    private static boolean isVisited(long[] visited, int id) {
+        return (visited[id >>> 6] & (1L << id)) != 0;
+    }
+
+    private static void markVisited(long[] visited, int id) {
+        visited[id >>> 6] |= 1L << id;
+    }
+
     private void DFSTraverse(TVal from, IVisitor<TVal> visitor) {
-        Stack<Graph<TVal, TWeight>.Vertex> stack = new Stack<>();
-        Graph<TVal, TWeight>.Vertex startingPoint = getVertex(from);
-        Set<Graph<TVal, TWeight>.Vertex> visited = new HashSet<>();
+        DFSTraverse(from, ALL_EDGES, visitor);
+    }
+
+    /**
+     * DFSTraverse over the edges accepted by filter only, as if the others were removed.
+     */
+    private void DFSTraverse(TVal from, Predicate<? super Edge> filter, IVisitor<TVal> visitor) {
+        Predicate<? super Edge> edgeFilter = exposed(filter);
+        Vertex startingPoint = getVertex(from);
+
+        if (startingPoint == null) {
+            return;
+        }
 
-        stack.push(startingPoint);
+        IntStack stack = new IntStack();
+        long[] visited = new long[(vertices.size() + 63) >>> 6];
+
+        stack.push(startingPoint.id);
 
         while (!stack.isEmpty()) {
-            Graph<TVal, TWeight>.Vertex currentVertex = stack.pop();
+            int currentId = stack.pop();
+
+            if (!isVisited(visited, currentId)) {
+                Vertex currentVertex = vertices.get(currentId);
+                List<Vertex> neighbors = currentVertex.neighbors;
 
-            if (!visited.contains(currentVertex)) {
                 visitor.visit(currentVertex.value);
-                visited.add(currentVertex);
-                currentVertex.adjacent().stream().filter(vertex -> !visited.contains(vertex)).forEach(stack::push);
+                markVisited(visited, currentId);
+
+                for (int i = 0; i < neighbors.size(); i++) {
+                    int adjacentId = neighbors.get(i).id;
+
+                    if (adjacentId >= 0 && !isVisited(visited, adjacentId) && edgeFilter.test(currentVertex.incidentEdges.get(i))) {
+                        stack.push(adjacentId);
+                    }
+                }
             }
         }
     }
 
     private void BFSTraverse(TVal from, IVisitor<TVal> visitor) {
-        LinkedTransferQueue<Graph<TVal, TWeight>.Vertex> queue = new LinkedTransferQueue<>();
-        Graph<TVal, TWeight>.Vertex startingPoint = getVertex(from);
-        Set<Graph<TVal, TWeight>.Vertex> visited = new HashSet<>();
+        BFSTraverse(from, ALL_EDGES, visitor);
+    }
 
-        queue.add(startingPoint);
+    private void BFSTraverse(TVal from, Predicate<? super Edge> filter, IVisitor<TVal> visitor) {
+        Predicate<? super Edge> edgeFilter = exposed(filter);
+        Vertex startingPoint = getVertex(from);
 
-        while (!queue.isEmpty()) {
-            Graph<TVal, TWeight>.Vertex currentVertex = queue.remove();
+        if (startingPoint == null) {
+            return;
+        }
 
-            if (!visited.contains(currentVertex)) {
-                visitor.visit(currentVertex.value);
-                visited.add(currentVertex);
-                currentVertex.adjacent().stream().filter(vertex -> !visited.contains(vertex)).forEach(queue::add);
+        // Marking on enqueue visits in the same order as marking on dequeue, and every vertex is queued once
+        int[] queue = new int[vertices.size()];
+        long[] visited = new long[(vertices.size() + 63) >>> 6];
+        int head = 0;
+        int tail = 0;
+
+        queue[tail++] = startingPoint.id;
+        markVisited(visited, startingPoint.id);
+
+        while (head < tail) {
+            Vertex currentVertex = vertices.get(queue[head++]);
+            List<Vertex> neighbors = currentVertex.neighbors;
+
+            visitor.visit(currentVertex.value);
+
+            for (int i = 0; i < neighbors.size(); i++) {
+                int adjacentId = neighbors.get(i).id;
+
+                if (adjacentId >= 0 && !isVisited(visited, adjacentId) && edgeFilter.test(currentVertex.incidentEdges.get(i))) {
+                    markVisited(visited, adjacentId);
+                    queue[tail++] = adjacentId;
+                }
             }
         }
     }
@@ -348,30 +1128,21 @@ public class Graph<TVal, TWeight> {
         // =========================================================================
     }
 
-    private Graph<TVal, TWeight> applyFirstConstraint(Graph<TVal, TWeight> graph) throws CloneNotSupportedException {
-        Graph<TVal, TWeight> newGraph = graph.clone();
-
-        List<Edge> toDel = newGraph.edges.stream().filter(edge -> (edge.from.value.toString().endsWith("-R") && edge.to.value.toString().endsWith("-DU")) ||
-                (edge.from.value.toString().endsWith("-DU") && edge.to.value.toString().endsWith("-R"))).collect(Collectors.toCollection(LinkedList::new));
-
-        for (Edge tod: toDel) {
-            newGraph.removeEdge(tod);
-        }
+    // Cities are named City-Region, the region is what follows the last dash
+    private VertexClassFilter regions(Graph<TVal, TWeight> graph) {
+        return graph.classifyVertices(value -> {
+            String name = value.toString();
 
-        return newGraph;
+            return name.substring(name.lastIndexOf('-') + 1);
+        });
     }
 
-    private Graph<TVal, TWeight> applySecondConstraint(Graph<TVal, TWeight> graph) throws CloneNotSupportedException {
-        Graph<TVal, TWeight> newGraph = graph.clone();
-
-        List<Edge> toDel = newGraph.edges.stream().filter(edge -> (edge.from.value.toString().endsWith("-R") && edge.to.value.toString().endsWith("-DG")) ||
-                (edge.from.value.toString().endsWith("-DG") && edge.to.value.toString().endsWith("-R"))).collect(Collectors.toCollection(LinkedList::new));
-
-        for (Edge tod: toDel) {
-            newGraph.removeEdge(tod);
-        }
+    private VertexClassFilter applyFirstConstraint(VertexClassFilter regions) {
+        return regions.forbid("R", "DU");
+    }
 
-        return newGraph;
+    private VertexClassFilter applySecondConstraint(VertexClassFilter regions) {
+        return regions.forbid("R", "DG");
     }
 
     private static void writeToFile(String filename, String value) {
@@ -414,34 +1185,42 @@ public class Graph<TVal, TWeight> {
         writeToFile("around.txt", resultJoiner.toString());
     }
 
-    private void problemB(Graph<TVal, TWeight> graph) throws CloneNotSupportedException {
+    private void problemB(Graph<TVal, TWeight> graph) {
         StringJoiner resultJoiner = new StringJoiner(" ");
 
-        String startingPoint = "Rostov-R";
-        CountVisitor<TVal> countVisitor = new CountVisitor<>();
+        int startingPoint = graph.idOf((TVal) "Rostov-R");
 
-        Graph<TVal, TWeight> newGraph = applyFirstConstraint(graph);
-        newGraph = applySecondConstraint(newGraph);
+        Predicate<Edge> constraints = applySecondConstraint(applyFirstConstraint(regions(graph)));
 
-        // first phase
+        // Both phases are what-if scenarios over the constrained roads, answered together
 
-        newGraph.DFSTraverse((TVal) startingPoint, countVisitor);
+        DynamicConnectivity scenarios = graph.dynamicConnectivity(constraints);
 
-        resultJoiner.add(countVisitor.count == graph.vertices.size() ? "yes" : "no");
+        // first phase
 
-        countVisitor.clear();
+        int allOpen = scenarios.newScenario();
 
         // second phase: there is a closed road
 
+        int roadClosed = scenarios.newScenario();
         String[] closedPaths = {"Vladikavkaz-R", "Tbilisi-G"};
 
         for (int i = 0; i < closedPaths.length; i += 2) {
-            newGraph.removeEdge((TVal)closedPaths[i], (TVal)closedPaths[i + 1]);
+            int from = graph.idOf((TVal) closedPaths[i]);
+            int to = graph.idOf((TVal) closedPaths[i + 1]);
+
+            if (from >= 0 && to >= 0) {
+                scenarios.close(roadClosed, from, to);
+            }
         }
 
-        newGraph.DFSTraverse((TVal)startingPoint, countVisitor);
+        scenarios.solve();
 
-        resultJoiner.add(countVisitor.count == graph.vertices.size() ? "yes" : "no");
+        // Everything is reachable from the starting point when all vertices are in one component
+
+        for (int scenario: new int[] {allOpen, roadClosed}) {
+            resultJoiner.add(startingPoint >= 0 && scenarios.componentCount(scenario) == 1 ? "yes" : "no");
+        }
 
         // result
 
@@ -672,79 +1451,539 @@ public class Graph<TVal, TWeight> {
         }
     }
 
-    private List<TVal> BFSTravel(TVal from, TVal to) {
-        /**
-         * We'll go BFS just layer by layer. One level is one vertex further.
-         * To fill the next layer we'll use the result of a previous one.
-         * Then, once the destination point is found, we go back,
-         * looking for the points that lead us to the one ahead.
-         * Finally, we'll reach the starting point, having all the intermediate
-         * points collected into the path.
-         * Then we just reverse the path to make it ordered from Starting point
-         * to Destination point.
-         */
+    /**
+     * Min-heap of vertex ids keyed by double priorities, with decrease-key.
+     * Every id remembers its place in the heap, so a priority can be lowered in place
+     * instead of inserting a duplicate. Nodes have arity children, which makes the heap
+     * shallower and decrease-key cheaper than in a binary heap.
+     */
+    static class IndexedHeap {
+        private final int arity;
+        private final int[] items;
+        private final int[] positions; // by id, -1 if the id is not in the heap
+        private final double[] priorities; // by id
+        private int size = 0;
+
+        IndexedHeap(int capacity, int arity) {
+            if (arity < 2) {
+                throw new IllegalArgumentException("Heap arity must be at least 2");
+            }
+
+            this.arity = arity;
+            items = new int[capacity];
+            positions = new int[capacity];
+            priorities = new double[capacity];
+
+            Arrays.fill(positions, -1);
+        }
 
-        Map<Integer, List<Vertex>> layers = new HashMap<>();
-        Set<Vertex> visited = new HashSet<>();
-        List<TVal> path = new LinkedList<>();
+        public int capacity() {
+            return items.length;
+        }
 
-        LinkedList<Vertex> firstLayer = new LinkedList<>();
-        firstLayer.add(getVertex(from));
-        boolean found = false;
+        public int size() {
+            return size;
+        }
 
-        layers.put(0, firstLayer);
-        int layer = 0;
+        public boolean isEmpty() {
+            return size == 0;
+        }
 
-        while (layer < vertices.size()) {
-            int nextLayer = layer + 1;
-            LinkedList<Vertex> nextLayerList = new LinkedList<>();
+        public boolean contains(int id) {
+            return positions[id] >= 0;
+        }
 
-            layers.put(nextLayer, nextLayerList);
+        public void insert(int id, double priority) {
+            if (contains(id)) {
+                throw new IllegalStateException("Id " + id + " is already in the heap");
+            }
 
-            LinkedList<Vertex> prevLayer = (LinkedList<Vertex>) layers.get(layer);
+            priorities[id] = priority;
+            items[size] = id;
+            siftUp(size++);
+        }
 
-            for (Vertex vertex: prevLayer) {
-                if (vertex.value.equals(to)) {
-                    // WOW, WIN!
-                    path.add(vertex.value);
+        public void decreaseKey(int id, double priority) {
+            if (!contains(id)) {
+                throw new IllegalStateException("Id " + id + " is not in the heap");
+            }
 
-                    Vertex destVertex = vertex;
+            if (priority > priorities[id]) {
+                throw new IllegalArgumentException("New priority of " + id + " is greater than the current one");
+            }
 
-                    for (int lyr = layer - 1; lyr >= 0; lyr--) {
-                        List<Vertex> layerList = layers.get(lyr);
+            priorities[id] = priority;
+            siftUp(positions[id]);
+        }
 
-                        for (Vertex potentialDestVertex: layerList) {
-                            if (potentialDestVertex.adjacent().contains(destVertex)) {
-                                path.add(potentialDestVertex.value);
-                                destVertex = potentialDestVertex;
-                                // Go back
-                                break;
-                            }
-                        }
+        public int removeMin() {
+            if (size == 0) {
+                throw new IllegalStateException("Heap is empty");
+            }
+
+            int min = items[0];
+
+            positions[min] = -1;
+
+            if (--size > 0) {
+                items[0] = items[size];
+                siftDown(0);
+            }
+
+            return min;
+        }
+
+        public void clear() {
+            for (int i = 0; i < size; i++) {
+                positions[items[i]] = -1;
+            }
+
+            size = 0;
+        }
+
+        private void siftUp(int i) {
+            int id = items[i];
+            double priority = priorities[id];
+
+            while (i > 0) {
+                int parent = (i - 1) / arity;
+                int parentId = items[parent];
+
+                if (priorities[parentId] <= priority) {
+                    break;
+                }
+
+                items[i] = parentId;
+                positions[parentId] = i;
+                i = parent;
+            }
+
+            items[i] = id;
+            positions[id] = i;
+        }
+
+        private void siftDown(int i) {
+            int id = items[i];
+            double priority = priorities[id];
+
+            while (true) {
+                int firstChild = i * arity + 1;
+
+                if (firstChild >= size) {
+                    break;
+                }
+
+                int lastChild = Math.min(firstChild + arity, size);
+                int minChild = firstChild;
+                double minPriority = priorities[items[firstChild]];
+
+                for (int child = firstChild + 1; child < lastChild; child++) {
+                    double childPriority = priorities[items[child]];
+
+                    if (childPriority < minPriority) {
+                        minChild = child;
+                        minPriority = childPriority;
                     }
+                }
 
-                    found = true;
+                if (priority <= minPriority) {
                     break;
                 }
 
-                if (!visited.contains(vertex)) {
-                    nextLayerList.addAll(vertex.adjacent().stream()
-                            .filter(vert -> !visited.contains(vert))
-                            .collect(Collectors.toCollection(LinkedList::new)));
+                items[i] = items[minChild];
+                positions[items[i]] = i;
+                i = minChild;
+            }
+
+            items[i] = id;
+            positions[id] = i;
+        }
+    }
+
+    /**
+     * Path with the fewest edges between two vertices, including both ends,
+     * or an empty list if there is no such path.
+     * Every vertex remembers the one it was reached from during BFS,
+     * so once the destination is found we just follow those links back.
+     */
+    public List<TVal> BFSTravel(TVal from, TVal to) {
+        return BFSTravel(from, to, ALL_EDGES);
+    }
+
+    /**
+     * BFSTravel over the edges accepted by filter only.
+     */
+    public List<TVal> BFSTravel(TVal from, TVal to, Predicate<? super Edge> filter) {
+        Predicate<? super Edge> edgeFilter = exposed(filter);
+        List<TVal> path = new ArrayList<>();
+        Vertex startingPoint = getVertex(from);
+        Vertex destination = getVertex(to);
+
+        if (startingPoint == null || destination == null) {
+            return path;
+        }
+
+        int[] queue = new int[vertices.size()];
+        int[] previous = new int[vertices.size()];
+        long[] visited = new long[(vertices.size() + 63) >>> 6];
+        int head = 0;
+        int tail = 0;
+
+        queue[tail++] = startingPoint.id;
+        previous[startingPoint.id] = -1;
+        markVisited(visited, startingPoint.id);
+
+        // The search stops as soon as the frontier is empty
+        while (head < tail) {
+            int currentId = queue[head++];
+
+            if (currentId == destination.id) {
+                for (int id = currentId; id != -1; id = previous[id]) {
+                    path.add(vertices.get(id).value);
                 }
 
-                visited.add(vertex);
+                Collections.reverse(path);
+
+                return path;
+            }
+
+            Vertex currentVertex = vertices.get(currentId);
+            List<Vertex> neighbors = currentVertex.neighbors;
+
+            for (int i = 0; i < neighbors.size(); i++) {
+                int adjacentId = neighbors.get(i).id;
+
+                if (adjacentId >= 0 && !isVisited(visited, adjacentId) && edgeFilter.test(currentVertex.incidentEdges.get(i))) {
+                    markVisited(visited, adjacentId);
+                    previous[adjacentId] = currentId;
+                    queue[tail++] = adjacentId;
+                }
             }
+        }
+
+        return path;
+    }
+
+    /**
+     * Scratch space for bidirectionalBFSTravel, dijkstraTravel and aStarTravel. Reusing one Search keeps queries free of allocations
+     * and makes a query cost only what it explores, a Search must not be shared between threads.
+     */
+    public Search newSearch() {
+        return new Search();
+    }
+
+    // Scratch space of the overloads without a Search. It depends only on the vertex count,
+    // so one per thread serves every graph and snapshot
+    private static final ThreadLocal<Graph<?, ?>.Search> THREAD_SEARCHES = new ThreadLocal<>();
+
+    // The Search of this thread, or a new one if a callback of the query holding it runs another query
+    @SuppressWarnings("unchecked")
+    private Search acquireSearch() {
+        Search search = (Search) THREAD_SEARCHES.get();
+
+        if (search == null) {
+            search = newSearch();
+            THREAD_SEARCHES.set(search);
+        } else if (search.inUse) {
+            search = newSearch();
+        }
+
+        search.inUse = true;
+
+        return search;
+    }
+
+    public final class Search {
+        // Indexed by vertex id, index 0 is the forward search
+        private int[][] stamps = new int[2][0];
+        private int[][] distances = new int[2][0];
+        private int[][] previous = new int[2][0];
+        private int[][] queues = new int[2][0];
+        private int epoch = 0;
+        private boolean inUse = false;
+
+        // Only weighted searches need these
+        private double[] costs;
+        private IndexedHeap heap;
+
+        private Search() {
+        }
+
+        private void prepare(int vertexCount) {
+            if (stamps[0].length < vertexCount) {
+                stamps = new int[2][vertexCount];
+                distances = new int[2][vertexCount];
+                previous = new int[2][vertexCount];
+                queues = new int[2][vertexCount];
+                epoch = 0;
+            }
+
+            if (++epoch == 0) {
+                Arrays.fill(stamps[0], 0);
+                Arrays.fill(stamps[1], 0);
+                epoch = 1;
+            }
+        }
+
+        private void prepareWeighted(int vertexCount) {
+            prepare(vertexCount);
+
+            if (heap == null || heap.capacity() < stamps[0].length) {
+                costs = new double[stamps[0].length];
+                heap = new IndexedHeap(stamps[0].length, HEAP_ARITY);
+            } else {
+                heap.clear();
+            }
+        }
+    }
+
+    /**
+     * Same result as BFSTravel, but searches from both ends at once, always expanding
+     * the smaller frontier by a whole layer, and stops once the two searches meet.
+     * Usually explores a small fraction of the vertices BFSTravel does.
+     * Uses a Search kept for the calling thread, see newSearch.
+     */
+    public List<TVal> bidirectionalBFSTravel(TVal from, TVal to) {
+        Search search = acquireSearch();
+
+        try {
+            return bidirectionalBFSTravel(from, to, search);
+        } finally {
+            search.inUse = false;
+        }
+    }
+
+    /**
+     * bidirectionalBFSTravel with the caller's scratch space, see newSearch.
+     */
+    public List<TVal> bidirectionalBFSTravel(TVal from, TVal to, Search search) {
+        List<TVal> path = new ArrayList<>();
+        Vertex startingPoint = getVertex(from);
+        Vertex destination = getVertex(to);
+
+        if (startingPoint == null || destination == null) {
+            return path;
+        }
+
+        search.prepare(vertices.size());
+
+        int epoch = search.epoch;
+        int[][] searchStamps = search.stamps;
+        int[][] searchDistances = search.distances;
+        int[][] searchPrevious = search.previous;
+        int[][] searchQueues = search.queues;
+
+        int[] heads = new int[2];
+        int[] tails = new int[2];
+        int[] roots = {startingPoint.id, destination.id};
+
+        for (int side = 0; side < 2; side++) {
+            int root = roots[side];
+
+            searchStamps[side][root] = epoch;
+            searchDistances[side][root] = 0;
+            searchPrevious[side][root] = -1;
+            searchQueues[side][tails[side]++] = root;
+        }
+
+        int bestLength = Integer.MAX_VALUE;
+        int meetForward = -1;
+        int meetBackward = -1;
+
+        if (startingPoint.id == destination.id) {
+            bestLength = 0;
+            meetForward = meetBackward = startingPoint.id;
+        }
+
+        while (bestLength == Integer.MAX_VALUE && heads[0] < tails[0] && heads[1] < tails[1]) {
+            int side = tails[0] - heads[0] <= tails[1] - heads[1] ? 0 : 1;
+            int other = 1 - side;
+            int[] stamps = searchStamps[side];
+            int[] otherStamps = searchStamps[other];
+            int[] queue = searchQueues[side];
+            int layerEnd = tails[side];
+
+            // Expand one whole layer, the best meeting point in it gives the shortest path
+            while (heads[side] < layerEnd) {
+                int currentId = queue[heads[side]++];
+                Vertex currentVertex = vertices.get(currentId);
+                List<Vertex> neighbors = currentVertex.neighbors;
+
+                for (int i = 0; i < neighbors.size(); i++) {
+                    int adjacentId = neighbors.get(i).id;
+
+                    if (adjacentId < 0) {
+                        continue;
+                    }
+
+                    if (otherStamps[adjacentId] == epoch) {
+                        int length = searchDistances[side][currentId] + 1 + searchDistances[other][adjacentId];
 
-            if (found) {
-                break;
+                        if (length < bestLength) {
+                            bestLength = length;
+                            meetForward = side == 0 ? currentId : adjacentId;
+                            meetBackward = side == 0 ? adjacentId : currentId;
+                        }
+                    }
+
+                    if (stamps[adjacentId] != epoch) {
+                        stamps[adjacentId] = epoch;
+                        searchDistances[side][adjacentId] = searchDistances[side][currentId] + 1;
+                        searchPrevious[side][adjacentId] = currentId;
+                        queue[tails[side]++] = adjacentId;
+                    }
+                }
             }
+        }
+
+        if (bestLength == Integer.MAX_VALUE) {
+            return path;
+        }
 
-            layer = nextLayer;
+        for (int id = meetForward; id != -1; id = searchPrevious[0][id]) {
+            path.add(vertices.get(id).value);
         }
 
         Collections.reverse(path);
 
+        int id = meetBackward == meetForward ? searchPrevious[1][meetBackward] : meetBackward;
+
+        for (; id != -1; id = searchPrevious[1][id]) {
+            path.add(vertices.get(id).value);
+        }
+
+        return path;
+    }
+
+    private static final int HEAP_ARITY = 4;
+
+    /**
+     * Cheapest path between two vertices, including both ends, or an empty list if there is no path.
+     * weightOf turns an edge weight into a cost, costs must not be negative.
+     * Uses a Search kept for the calling thread, see newSearch.
+     */
+    public List<TVal> dijkstraTravel(TVal from, TVal to, ToDoubleFunction<? super TWeight> weightOf) {
+        return weightedTravel(from, to, weightOf, null);
+    }
+
+    /**
+     * dijkstraTravel with the caller's scratch space, see newSearch.
+     */
+    public List<TVal> dijkstraTravel(TVal from, TVal to, ToDoubleFunction<? super TWeight> weightOf, Search search) {
+        return weightedTravel(from, to, weightOf, null, search);
+    }
+
+    /**
+     * dijkstraTravel for numeric weights.
+     */
+    public List<TVal> dijkstraTravel(TVal from, TVal to) {
+        return dijkstraTravel(from, to, weight -> ((Number) weight).doubleValue());
+    }
+
+    /**
+     * Same result as dijkstraTravel, but the search is guided towards the destination
+     * by remainingCost, an estimate of the cost from a vertex to the destination.
+     * The estimate must never exceed the real cost and must not drop by more than
+     * the cost of an edge when moving along it (e.g. the straight line distance on a map).
+     */
+    public List<TVal> aStarTravel(TVal from, TVal to, ToDoubleFunction<? super TWeight> weightOf,
+                                  ToDoubleFunction<? super TVal> remainingCost) {
+        return weightedTravel(from, to, weightOf, remainingCost);
+    }
+
+    /**
+     * aStarTravel with the caller's scratch space, see newSearch.
+     */
+    public List<TVal> aStarTravel(TVal from, TVal to, ToDoubleFunction<? super TWeight> weightOf,
+                                  ToDoubleFunction<? super TVal> remainingCost, Search search) {
+        return weightedTravel(from, to, weightOf, remainingCost, search);
+    }
+
+    // With the Search of this thread, weightOf and remainingCost may run queries of their own
+    private List<TVal> weightedTravel(TVal from, TVal to, ToDoubleFunction<? super TWeight> weightOf,
+                                      ToDoubleFunction<? super TVal> remainingCost) {
+        Search search = acquireSearch();
+
+        try {
+            return weightedTravel(from, to, weightOf, remainingCost, search);
+        } finally {
+            search.inUse = false;
+        }
+    }
+
+    private List<TVal> weightedTravel(TVal from, TVal to, ToDoubleFunction<? super TWeight> weightOf,
+                                      ToDoubleFunction<? super TVal> remainingCost, Search search) {
+        List<TVal> path = new ArrayList<>();
+        Vertex startingPoint = getVertex(from);
+        Vertex destination = getVertex(to);
+
+        if (startingPoint == null || destination == null) {
+            return path;
+        }
+
+        search.prepareWeighted(vertices.size());
+
+        // A vertex is reached once it has a cost, and settled once that cost is final
+        int epoch = search.epoch;
+        int[] reached = search.stamps[0];
+        int[] settled = search.stamps[1];
+        int[] previous = search.previous[0];
+        double[] costs = search.costs;
+        IndexedHeap heap = search.heap;
+
+        reached[startingPoint.id] = epoch;
+        costs[startingPoint.id] = 0;
+        previous[startingPoint.id] = -1;
+        heap.insert(startingPoint.id, remainingCost == null ? 0 : remainingCost.applyAsDouble(startingPoint.value));
+
+        while (!heap.isEmpty()) {
+            int currentId = heap.removeMin();
+
+            if (currentId == destination.id) {
+                for (int id = currentId; id != -1; id = previous[id]) {
+                    path.add(vertices.get(id).value);
+                }
+
+                Collections.reverse(path);
+
+                return path;
+            }
+
+            settled[currentId] = epoch;
+
+            Vertex currentVertex = vertices.get(currentId);
+            List<Edge> incidentEdges = currentVertex.incidentEdges;
+
+            for (int i = 0; i < incidentEdges.size(); i++) {
+                Edge edge = incidentEdges.get(i);
+                Vertex adjacentVertex = currentVertex.neighbors.get(i);
+                int adjacentId = adjacentVertex.id;
+
+                if (adjacentId < 0 || settled[adjacentId] == epoch) {
+                    continue;
+                }
+
+                double weight = weightOf.applyAsDouble(edge.weight);
+
+                if (weight < 0) {
+                    throw new IllegalArgumentException("Negative weight of " + edge);
+                }
+
+                double cost = costs[currentId] + weight;
+
+                if (reached[adjacentId] != epoch) {
+                    reached[adjacentId] = epoch;
+                    costs[adjacentId] = cost;
+                    previous[adjacentId] = currentId;
+                    heap.insert(adjacentId, remainingCost == null ? cost : cost + remainingCost.applyAsDouble(adjacentVertex.value));
+                } else if (cost < costs[adjacentId]) {
+                    costs[adjacentId] = cost;
+                    previous[adjacentId] = currentId;
+                    heap.decreaseKey(adjacentId, remainingCost == null ? cost : cost + remainingCost.applyAsDouble(adjacentVertex.value));
+                }
+            }
+        }
+
         return path;
     }
 
@@ -770,18 +2009,17 @@ public class Graph<TVal, TWeight> {
         writeToFile("travel.txt", pathJoiner.toString());
     }
 
-    private void problemD(Graph<TVal, TWeight> graph) throws CloneNotSupportedException {
+    private void problemD(Graph<TVal, TWeight> graph) {
         String[] from = {"Melitopol-U", "Sukhumi-DG"};
         String[] to = {"Rostov-R", "Lugansk-DU"};
         StringJoiner pathJoiner = new StringJoiner("\n");
 
-        graph = graph.applyFirstConstraint(graph);
-        graph = graph.applySecondConstraint(graph);
+        Predicate<Edge> constraints = applySecondConstraint(applyFirstConstraint(regions(graph)));
 
         for (int i = 0; i < from.length; i++) {
             StringJoiner cityJoiner = new StringJoiner(" ");
 
-            List<TVal> path = graph.BFSTravel((TVal) from[i], (TVal) to[i]);
+            List<TVal> path = graph.BFSTravel((TVal) from[i], (TVal) to[i], constraints);
 
             cityJoiner.add("" + (path.size() - 1));
 
@@ -0,0 +1,396 @@
+package com.qiwi360.graph;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Simple timing harness for Graph queries.
+ * Reports time and bytes allocated by the current thread per run.
+ */
+public class GraphBenchmark {
+    private static final int WARMUP = 2;
+    private static final int ITERATIONS = 3;
+    private static final int QUERIES = 200;
+
+    private static final com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Keeps results alive so the JIT can't drop the work
+    static long blackhole;
+
+    private static long allocatedBytes() {
+        return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Returns the average time of one run in nanoseconds.
+     */
+    private static double measure(String name, Runnable operation) {
+        for (int i = 0; i < WARMUP; i++) {
+            operation.run();
+        }
+
+        long bytesBefore = allocatedBytes();
+        long timeBefore = System.nanoTime();
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            operation.run();
+        }
+
+        long time = System.nanoTime() - timeBefore;
+        long bytes = allocatedBytes() - bytesBefore;
+
+        System.out.printf("%-36s %10.3f ms/op %14d B/op%n", name, time / 1e6 / ITERATIONS, bytes / ITERATIONS);
+
+        return (double) time / ITERATIONS;
+    }
+
+    static Graph<Integer, Integer> randomGraph(int vertexCount, int edgeCount, long seed) {
+        Graph<Integer, Integer> graph = new Graph<>();
+        Random random = new Random(seed);
+
+        for (int i = 0; i < vertexCount; i++) {
+            graph.addVertex(i);
+        }
+
+        for (int i = 0; i < edgeCount; i++) {
+            graph.addEdge(random.nextInt(vertexCount), random.nextInt(vertexCount), random.nextInt(100) + 1);
+        }
+
+        return graph;
+    }
+
+    /**
+     * Chung-Lu style graph where the expected degree of vertex i is proportional to 1 / (i + 1),
+     * so vertex 0 is a hub with about 2 * edgeCount / ln(vertexCount) edges.
+     */
+    static Graph<Integer, Integer> powerLawGraph(int vertexCount, int edgeCount, long seed) {
+        Graph<Integer, Integer> graph = new Graph<>();
+        Random random = new Random(seed);
+        double logCount = Math.log(vertexCount + 1);
+
+        for (int i = 0; i < vertexCount; i++) {
+            graph.addVertex(i);
+        }
+
+        for (int i = 0; i < edgeCount; i++) {
+            int from = (int) Math.exp(random.nextDouble() * logCount) - 1;
+            int to = (int) Math.exp(random.nextDouble() * logCount) - 1;
+
+            graph.addEdge(from, to, random.nextInt(100) + 1);
+        }
+
+        return graph;
+    }
+
+    static Graph<Integer, Integer> gridGraph(int side, long seed) {
+        Graph<Integer, Integer> graph = new Graph<>();
+        Random random = new Random(seed);
+
+        for (int i = 0; i < side * side; i++) {
+            graph.addVertex(i);
+        }
+
+        for (int row = 0; row < side; row++) {
+            for (int column = 0; column < side; column++) {
+                int id = row * side + column;
+
+                if (column + 1 < side) {
+                    graph.addEdge(id, id + 1, random.nextInt(100) + 1);
+                }
+
+                if (row + 1 < side) {
+                    graph.addEdge(id, id + side, random.nextInt(100) + 1);
+                }
+            }
+        }
+
+        return graph;
+    }
+
+    private static void pointToPoint(String title, Graph<Integer, Integer> graph, int vertexCount) {
+        int[] from = new int[QUERIES];
+        int[] to = new int[QUERIES];
+        Random random = new Random(1);
+
+        for (int q = 0; q < QUERIES; q++) {
+            from[q] = random.nextInt(vertexCount);
+            to[q] = random.nextInt(vertexCount);
+        }
+
+        System.out.println(title + ", " + QUERIES + " queries");
+
+        measure("BFSTravel", () -> {
+            for (int q = 0; q < QUERIES; q++) {
+                graph.BFSTravel(from[q], to[q]);
+            }
+        });
+        measure("bidirectionalBFSTravel", () -> {
+            for (int q = 0; q < QUERIES; q++) {
+                graph.bidirectionalBFSTravel(from[q], to[q]);
+            }
+        });
+
+        Graph<Integer, Integer>.Search search = graph.newSearch();
+
+        measure("bidirectionalBFSTravel, one Search", () -> {
+            for (int q = 0; q < QUERIES; q++) {
+                graph.bidirectionalBFSTravel(from[q], to[q], search);
+            }
+        });
+    }
+
+    private static void weighted(Graph<Integer, Integer> graph, int side) {
+        int[] from = new int[QUERIES];
+        int[] to = new int[QUERIES];
+        Random random = new Random(1);
+
+        for (int q = 0; q < QUERIES; q++) {
+            from[q] = random.nextInt(side * side);
+            to[q] = random.nextInt(side * side);
+        }
+
+        System.out.println("Weighted grid " + side + " x " + side + ", " + QUERIES + " queries");
+
+        measure("dijkstraTravel", () -> {
+            for (int q = 0; q < QUERIES; q++) {
+                graph.dijkstraTravel(from[q], to[q]);
+            }
+        });
+        // Every edge costs at least 1, so the number of steps left is a valid estimate
+        measure("aStarTravel, grid distance", () -> {
+            for (int q = 0; q < QUERIES; q++) {
+                int target = to[q];
+
+                graph.aStarTravel(from[q], target, Integer::doubleValue,
+                        v -> Math.abs(v / side - target / side) + Math.abs(v % side - target % side));
+            }
+        });
+
+        Graph<Integer, Integer>.Search search = graph.newSearch();
+
+        measure("dijkstraTravel, one Search", () -> {
+            for (int q = 0; q < QUERIES; q++) {
+                graph.dijkstraTravel(from[q], to[q], Integer::doubleValue, search);
+            }
+        });
+    }
+
+    private static void powerLaw(Graph<Integer, Integer> graph) {
+        int hubDegree = graph.getVertexById(0).adjacent().size();
+
+        System.out.println("Power law graph, " + graph.vertexCount() + " vertices, hub degree " + hubDegree);
+
+        measure("HashSet of all vertices", () -> {
+            Set<Graph<Integer, Integer>.Vertex> seen = new HashSet<>();
+
+            for (int id = 0; id < graph.vertexCount(); id++) {
+                seen.add(graph.getVertexById(id));
+            }
+        });
+        measure("HashSet of the 1000 largest hubs x 100", () -> {
+            Set<Graph<Integer, Integer>.Vertex> seen = new HashSet<>();
+
+            for (int round = 0; round < 100; round++) {
+                for (int id = 0; id < 1000; id++) {
+                    seen.add(graph.getVertexById(id));
+                }
+            }
+        });
+        measure("adjacent() of every vertex", () -> {
+            long sum = 0;
+
+            for (int id = 0; id < graph.vertexCount(); id++) {
+                for (Graph<Integer, Integer>.Vertex neighbor: graph.getVertexById(id).adjacent()) {
+                    sum += neighbor.getId();
+                }
+            }
+
+            blackhole = sum;
+        });
+        measure("forEachNeighbor of every vertex", () -> {
+            long[] sum = new long[1];
+
+            for (int id = 0; id < graph.vertexCount(); id++) {
+                graph.getVertexById(id).forEachNeighbor(neighborId -> sum[0] += neighborId);
+            }
+
+            blackhole = sum[0];
+        });
+        pointToPoint("Power law graph", graph, graph.vertexCount());
+    }
+
+    private static final int SCENARIOS = 100;
+    private static final int CLOSED_ROADS = 10;
+
+    // Forks the grid and closes a few roads in every fork
+    private static void whatIf(Graph<Integer, Integer> graph, int side) {
+        int[] closedFrom = new int[SCENARIOS * CLOSED_ROADS];
+        Random random = new Random(1);
+
+        for (int i = 0; i < closedFrom.length; i++) {
+            closedFrom[i] = random.nextInt(side * (side - 1));
+        }
+
+        System.out.println("What-if on grid " + side + " x " + side + ", " + SCENARIOS + " scenarios of "
+                + CLOSED_ROADS + " closed roads");
+
+        measure("clone", () -> {
+            try {
+                for (int s = 0; s < SCENARIOS; s++) {
+                    Graph<Integer, Integer> scenario = graph.clone();
+
+                    for (int r = 0; r < CLOSED_ROADS; r++) {
+                        scenario.removeEdge(closedFrom[s * CLOSED_ROADS + r], closedFrom[s * CLOSED_ROADS + r] + 1);
+                    }
+                }
+            } catch (CloneNotSupportedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        measure("snapshot", () -> {
+            for (int s = 0; s < SCENARIOS; s++) {
+                Graph<Integer, Integer> scenario = graph.snapshot();
+
+                for (int r = 0; r < CLOSED_ROADS; r++) {
+                    scenario.removeEdge(closedFrom[s * CLOSED_ROADS + r], closedFrom[s * CLOSED_ROADS + r] + 1);
+                }
+            }
+        });
+    }
+
+    // Closes every tenth road of the grid on a fresh snapshot, one by one and in one batch
+    private static void massClosure(Graph<Integer, Integer> graph, int side) {
+        System.out.println("Closing every tenth road of grid " + side + " x " + side);
+
+        measure("removeEdge per road", () -> {
+            Graph<Integer, Integer> scenario = graph.snapshot();
+
+            for (int id = 0; id < side * side; id += 10) {
+                if ((id + 1) % side != 0) {
+                    scenario.removeEdge(id, id + 1);
+                }
+            }
+        });
+        measure("removeEdges", () -> {
+            Graph<Integer, Integer> scenario = graph.snapshot();
+
+            scenario.removeEdges(edge -> edge.getFrom().getId() % 10 == 0
+                    && edge.getTo().getId() == edge.getFrom().getId() + 1);
+        });
+    }
+
+    private static void connectivity(String title, Graph<Integer, Integer> graph) {
+        int[] from = new int[QUERIES];
+        int[] to = new int[QUERIES];
+        Random random = new Random(1);
+
+        for (int q = 0; q < QUERIES; q++) {
+            from[q] = random.nextInt(graph.vertexCount());
+            to[q] = random.nextInt(graph.vertexCount());
+        }
+
+        System.out.println(title + ", " + graph.componentCount() + " components");
+
+        measure("components()", () -> blackhole = graph.components().componentCount());
+        measure("connected, " + QUERIES + " queries", () -> {
+            for (int q = 0; q < QUERIES; q++) {
+                blackhole += graph.connected(from[q], to[q]) ? 1 : 0;
+            }
+        });
+        measure("BFSTravel, " + QUERIES + " queries", () -> {
+            for (int q = 0; q < QUERIES; q++) {
+                blackhole += graph.BFSTravel(from[q], to[q]).isEmpty() ? 0 : 1;
+            }
+        });
+    }
+
+    // Closes the cheapest tenth of the roads, many of them at the hubs
+    private static void massClosure(Graph<Integer, Integer> graph) {
+        List<int[]> closed = new ArrayList<>();
+
+        for (int id = 0; id < graph.vertexCount(); id++) {
+            Graph<Integer, Integer>.Vertex vertex = graph.getVertexById(id);
+
+            for (int i = 0; i < vertex.degree(); i++) {
+                Graph<Integer, Integer>.Edge edge = vertex.incidentEdge(i);
+
+                if (edge.getWeight() <= 10 && edge.getFrom() == vertex) {
+                    closed.add(new int[] {edge.getFrom().getId(), edge.getTo().getId()});
+                }
+            }
+        }
+
+        System.out.println("Closing " + closed.size() + " roads of the power law graph");
+
+        measure("removeEdge per road", () -> {
+            Graph<Integer, Integer> scenario = graph.snapshot();
+
+            for (int[] road: closed) {
+                scenario.removeEdge(road[0], road[1]);
+            }
+        });
+        measure("removeEdges", () -> graph.snapshot().removeEdges(edge -> edge.getWeight() <= 10));
+    }
+
+    private static final int CLOSURE_SCENARIOS = 1000;
+
+    // Is the grid still in one piece after closing a few roads, for many scenarios
+    private static void closureScenarios(Graph<Integer, Integer> graph, int side) {
+        int[] closedFrom = new int[CLOSURE_SCENARIOS * CLOSED_ROADS];
+        Random random = new Random(1);
+
+        for (int i = 0; i < closedFrom.length; i++) {
+            closedFrom[i] = random.nextInt(side * (side - 1));
+        }
+
+        System.out.println("Connectivity of grid " + side + " x " + side + ", " + CLOSURE_SCENARIOS
+                + " scenarios of " + CLOSED_ROADS + " closed roads");
+
+        measure("snapshot and components()", () -> {
+            for (int s = 0; s < CLOSURE_SCENARIOS; s++) {
+                Graph<Integer, Integer> scenario = graph.snapshot();
+
+                for (int r = 0; r < CLOSED_ROADS; r++) {
+                    scenario.removeEdge(closedFrom[s * CLOSED_ROADS + r], closedFrom[s * CLOSED_ROADS + r] + 1);
+                }
+
+                blackhole += scenario.components().componentCount();
+            }
+        });
+        measure("dynamicConnectivity", () -> {
+            DynamicConnectivity scenarios = graph.dynamicConnectivity();
+
+            for (int s = 0; s < CLOSURE_SCENARIOS; s++) {
+                int scenario = scenarios.newScenario();
+
+                for (int r = 0; r < CLOSED_ROADS; r++) {
+                    scenarios.close(scenario, closedFrom[s * CLOSED_ROADS + r], closedFrom[s * CLOSED_ROADS + r] + 1);
+                }
+            }
+
+            scenarios.solve();
+
+            for (int s = 0; s < CLOSURE_SCENARIOS; s++) {
+                blackhole += scenarios.componentCount(s);
+            }
+        });
+    }
+
+    public static void main(String[] args) {
+        pointToPoint("Random graph, 200000 vertices, 600000 edges", randomGraph(200_000, 600_000, 42), 200_000);
+        pointToPoint("Grid graph, 300 x 300", gridGraph(300, 42), 300 * 300);
+        weighted(gridGraph(300, 42), 300);
+        whatIf(gridGraph(300, 42), 300);
+        massClosure(gridGraph(300, 42), 300);
+        powerLaw(powerLawGraph(200_000, 1_000_000, 42));
+        massClosure(powerLawGraph(200_000, 1_000_000, 42));
+        connectivity("Random graph, 200000 vertices, 100000 edges", randomGraph(200_000, 100_000, 42));
+        connectivity("Power law graph, 200000 vertices, 1000000 edges", powerLawGraph(200_000, 1_000_000, 42));
+        closureScenarios(gridGraph(300, 42), 300);
+    }
+}
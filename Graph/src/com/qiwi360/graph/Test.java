@@ -0,0 +1,199 @@
+package com.qiwi360.graph;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Predicate;
+
+/**
+ * Randomized check of snapshot: forks and their sources take the same random changes as
+ * independent deep clones, then everything reachable through the public API must match.
+ */
+public class Test {
+    private static final int RUNS = 300;
+    private static final int STEPS = 200;
+    private static final int VALUES = 40;
+
+    private static void change(Graph<Integer, Integer> graph, int kind, int a, int b, int weight) {
+        int id = graph.idOf(a);
+
+        switch (kind) {
+            case 0:
+                graph.addVertex(a);
+                break;
+            case 1:
+                graph.addEdge(a, b, weight);
+                break;
+            case 2:
+                graph.removeEdge(a, b);
+                break;
+            default:
+                if (id >= 0) {
+                    graph.removeVertex(graph.getVertexById(id));
+                }
+        }
+    }
+
+    private static String values(List<? extends Graph<?, ?>.Vertex> vertices) {
+        StringBuilder builder = new StringBuilder();
+
+        for (Graph<?, ?>.Vertex vertex: vertices) {
+            builder.append(vertex.getValue()).append(' ');
+        }
+
+        return builder.toString();
+    }
+
+    // Neighbors and neighbors of neighbors of every vertex, as seen from the outside
+    private static String describe(Graph<Integer, Integer> graph) {
+        StringBuilder builder = new StringBuilder();
+
+        for (int id = 0; id < graph.vertexCount(); id++) {
+            Graph<Integer, Integer>.Vertex vertex = graph.getVertexById(id);
+
+            builder.append(vertex.getValue()).append(": ").append(values(vertex.adjacent()));
+
+            // removeVertex leaves the edges of a removed vertex, which belongs to no graph after that
+            for (Graph<Integer, Integer>.Vertex neighbor: vertex.adjacent()) {
+                builder.append("| ").append(neighbor.getId() < 0 ? "removed " : values(neighbor.adjacent()));
+            }
+
+            // The same through the allocation-free accessors
+            builder.append("/ ");
+
+            for (int i = 0; i < vertex.degree(); i++) {
+                Graph<Integer, Integer>.Edge edge = vertex.incidentEdge(i);
+                Graph<Integer, Integer>.Vertex neighbor = vertex.neighbor(i);
+
+                builder.append(neighbor.getValue()).append(' ').append(degree(neighbor)).append(' ')
+                        .append(degree(edge.getFrom()) + degree(edge.getTo())).append(' ');
+
+                // A graph hands out one object per vertex
+                check(edge.getFrom() == vertex || edge.getTo() == vertex, "Edge " + edge + " doesn't lead back to " + vertex);
+                check(neighbor.getId() < 0 || graph.getVertexById(neighbor.getId()) == neighbor, "Two objects for " + neighbor);
+            }
+
+            vertex.forEachNeighbor(neighborId -> builder.append(neighborId).append(' '));
+            builder.append('\n');
+        }
+
+        // Filters get edges that navigate the graph too
+        Predicate<Graph<Integer, Integer>.Edge> evenEnds = edge -> (degree(edge.getFrom()) + degree(edge.getTo())) % 2 == 0;
+
+        builder.append(graph.components(evenEnds).componentCount());
+
+        return builder.toString();
+    }
+
+    private static int degree(Graph<Integer, Integer>.Vertex vertex) {
+        return vertex.getId() < 0 ? 0 : vertex.degree();
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+
+    public static void main(String[] args) {
+        // A vertex handed out before a snapshot sees later changes of its graph
+        Graph<String, Integer> cities = new Graph<>();
+
+        cities.addVertex("A");
+        cities.addVertex("B");
+        cities.addVertex("C");
+        cities.addEdge("A", "B", 1);
+        cities.snapshot();
+        cities.addEdge("B", "C", 1);
+
+        check(cities.getVertexById(0).adjacent().get(0).adjacent().size() == 2,
+                "Neighbor of A doesn't see the new edge B - C");
+
+        // Vertices handed out before a removal in a snapshotted graph follow the renumbering
+        Graph<String, Integer>.Vertex cityA = cities.getVertexById(0);
+        Graph<String, Integer>.Vertex cityB = cities.getVertexById(1);
+        Graph<String, Integer>.Vertex cityC = cities.getVertexById(2);
+
+        cities.addVertex("D");
+        cities.snapshot();
+        cities.removeVertex(cityA);
+        cities.addEdge(cityC, cityB, 2);
+
+        check(cityA.getId() == -1 && cityC.getId() == 1 && cities.getVertexById(1) == cityC, "C lost its place after removing A");
+        check(values(cityC.adjacent()).equals("B B "), "C has neighbors " + values(cityC.adjacent()));
+        check(cities.getVertexById(2).degree() == 0, "D got an edge of C");
+
+        // Vertices are equal within one graph only
+        check(cityC.equals(cities.getVertexById(1)) && !cityC.equals(cities.snapshot().getVertexById(1)),
+                "C is equal to its vertex in a snapshot");
+
+        for (int run = 0; run < RUNS; run++) {
+            Random random = new Random(run);
+            List<Graph<Integer, Integer>> graphs = new ArrayList<>();
+            List<Graph<Integer, Integer>> models = new ArrayList<>();
+            List<Graph<Integer, Integer>.Vertex> held = new ArrayList<>();
+            List<Graph<Integer, Integer>.Vertex> heldModels = new ArrayList<>();
+            List<Integer> heldIn = new ArrayList<>();
+            Graph<Integer, Integer> graph = new Graph<>();
+
+            for (int i = 0; i < 25; i++) {
+                graph.addVertex(i);
+            }
+
+            for (int i = 0; i < 50; i++) {
+                graph.addEdge(random.nextInt(25), random.nextInt(25), random.nextInt(9));
+            }
+
+            try {
+                graphs.add(graph);
+                models.add(graph.clone());
+
+                for (int step = 0; step < STEPS; step++) {
+                    int k = random.nextInt(graphs.size());
+                    int kind = random.nextInt(12);
+
+                    if (kind == 11) {
+                        graphs.add(graphs.get(k).snapshot());
+                        models.add(models.get(k).clone());
+                    } else if (kind == 10) {
+                        if (graphs.get(k).vertexCount() > 0) {
+                            int id = random.nextInt(graphs.get(k).vertexCount());
+
+                            held.add(graphs.get(k).getVertexById(id));
+                            heldModels.add(models.get(k).getVertexById(id));
+                            heldIn.add(k);
+                        }
+                    } else {
+                        int a = random.nextInt(VALUES);
+                        int b = random.nextInt(VALUES);
+                        int weight = random.nextInt(9);
+                        int changeKind = kind < 2 ? 0 : kind < 6 ? 1 : kind < 9 ? 2 : 3;
+
+                        change(graphs.get(k), changeKind, a, b, weight);
+                        change(models.get(k), changeKind, a, b, weight);
+                    }
+                }
+            } catch (CloneNotSupportedException e) {
+                throw new IllegalStateException(e);
+            }
+
+            for (int i = 0; i < graphs.size(); i++) {
+                check(describe(graphs.get(i)).equals(describe(models.get(i))), "Run " + run + ", graph " + i);
+            }
+
+            // A held vertex stays the same vertex through copies and renumbering, like in the model,
+            // which is never snapshotted and so renumbers its vertices in place
+            for (int i = 0; i < held.size(); i++) {
+                Graph<Integer, Integer>.Vertex vertex = held.get(i);
+                Graph<Integer, Integer>.Vertex model = heldModels.get(i);
+                String message = "Run " + run + ", held vertex " + vertex;
+
+                check(vertex.getValue().equals(model.getValue()) && vertex.getId() == model.getId(), message);
+                check(vertex.getId() < 0 || graphs.get(heldIn.get(i)).getVertexById(vertex.getId()) == vertex, message);
+                check(vertex.getId() < 0 || values(vertex.adjacent()).equals(values(model.adjacent())), message);
+            }
+        }
+
+        System.out.println("done");
+    }
+}